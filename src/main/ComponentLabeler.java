@@ -0,0 +1,329 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import misc.BitMask;
+import misc.Neighbourhood;
+
+/**
+ * Labels all connected components of a segment at once (two pass union-find).
+ * The first pass labels every slice on its own, in parallel, using the in-plane
+ * part of the neighbourhood (4-connectivity for N6, 8-connectivity for N18 and
+ * N26). The slice labels are then merged across neighbouring slices and
+ * renumbered, so components get the ids 1..get_component_num() in the order
+ * of their first voxel (slice by slice, row by row). Voxel counts and bounding
+ * boxes are collected on the way, and every component can be copied into a
+ * segment without growing it again. The labels of a slice only cover the
+ * bounding box of its layer, an int per voxel of the box; empty slices take no
+ * memory at all.
+ */
+public class ComponentLabeler {
+	private Segment _seg;
+	private Neighbourhood _nb;
+	private int _w, _h, _d;
+	private int[][] _labels;	// per slice, index (x - x0) + (y - y0) * box width: 0 = background, else the component id
+	private int[][] _boxes;		// per slice, the box {x0, y0, x1, y1} the labels cover, null if the slice is empty
+	private int _num;			// the number of components
+	private int[] _counts;		// voxels per component id
+	private int[] _bounds;		// per component id: x0, y0, z0, x1, y1, z1 (inclusive)
+
+	/**
+	 * Constructor, labels the components of a segment.
+	 *
+	 * @param seg		the segment
+	 * @param slices	the image stack the segment belongs to
+	 * @param nb		the neighbourhood defining connectivity
+	 */
+	public ComponentLabeler(Segment seg, ImageStack slices, Neighbourhood nb) {
+		_seg = seg;
+		_nb = nb;
+		_w = slices.getImageWidth();
+		_h = slices.getImageHeight();
+		_d = slices.getNumberOfImages();
+		label();
+	}
+
+	/**
+	 * Returns the number of components.
+	 *
+	 * @return the number of components, ids are 1..number
+	 */
+	public int get_component_num() {
+		return _num;
+	}
+
+	/**
+	 * Returns the component of a voxel.
+	 *
+	 * @param x	the horizontal position
+	 * @param y	the vertical position
+	 * @param z	the slice
+	 * @return the component id, 0 if the voxel is not in the segment
+	 */
+	public int get_label(int x, int y, int z) {
+		int[] box = _boxes[z];
+		if (box == null || x < box[0] || x > box[2] || y < box[1] || y > box[3]) {
+			return 0;
+		}
+		return _labels[z][(x - box[0]) + (y - box[1]) * (box[2] - box[0] + 1)];
+	}
+
+	/**
+	 * Returns the number of voxels of a component.
+	 *
+	 * @param id	the component id
+	 * @return the voxel count
+	 */
+	public int get_voxel_count(int id) {
+		return _counts[id];
+	}
+
+	/**
+	 * Returns the bounding box of a component.
+	 *
+	 * @param id	the component id
+	 * @return {x0, y0, z0, x1, y1, z1}, all inclusive
+	 */
+	public int[] get_bounding_box(int id) {
+		int[] box = new int[6];
+		System.arraycopy(_bounds, id * 6, box, 0, 6);
+		return box;
+	}
+
+	/**
+	 * Replaces the content of a segment by one component.
+	 *
+	 * @param id		the component id
+	 * @param target	the segment receiving the component, of the same size
+	 */
+	public void extract(int id, Segment target) {
+		target.clear();
+		int b = id * 6;
+		for (int z = _bounds[b + 2]; z <= _bounds[b + 5]; z++) {
+			BitMask mask = target.getMask(z);
+			synchronized (mask) {
+				for (int y = _bounds[b + 1]; y <= _bounds[b + 4]; y++) {
+					for (int x = _bounds[b]; x <= _bounds[b + 3]; x++) {
+						if (get_label(x, y, z) == id) {
+							mask.set(x, y, true);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void label() {
+		_seg.materialize();
+		_labels = new int[_d][];
+		_boxes = new int[_d][];
+
+		// first pass: label each slice on its own, with local ids 1..count[z]
+		final int[] count = new int[_d];
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int z = 0; z < _d; z++) {
+			final int slice = z;
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					count[slice] = label_slice(slice);
+					return null;
+				}
+			});
+		}
+		run(tasks);
+
+		// global ids: slice z uses offset[z]+1 .. offset[z]+count[z]
+		int[] offset = new int[_d + 1];
+		for (int z = 0; z < _d; z++) {
+			offset[z + 1] = offset[z] + count[z];
+		}
+		int[] parent = new int[offset[_d] + 1];
+		for (int i = 0; i < parent.length; i++) {
+			parent[i] = i;
+		}
+
+		// merge labels of voxels that are neighbours across slices
+		int[][] deltas = slice_deltas();
+		for (int z = 1; z < _d; z++) {
+			if (count[z] == 0 || count[z - 1] == 0) continue;
+			int[] box = _boxes[z], labels = _labels[z];
+			int bw = box[2] - box[0] + 1;
+			for (int y = box[1]; y <= box[3]; y++) {
+				for (int x = box[0]; x <= box[2]; x++) {
+					int l = labels[(x - box[0]) + (y - box[1]) * bw];
+					if (l == 0) continue;
+					for (int[] delta : deltas) {
+						int m = get_label(x + delta[0], y + delta[1], z - 1);
+						if (m != 0) {
+							union(parent, offset[z] + l, offset[z - 1] + m);
+						}
+					}
+				}
+			}
+		}
+
+		// final ids in the order of the first voxel of each component
+		final int[] id = new int[parent.length];
+		_num = 0;
+		for (int g = 1; g < parent.length; g++) {
+			int root = find(parent, g);
+			id[g] = root == g ? ++_num : id[root];
+		}
+
+		// second pass: relabel and collect counts and bounding boxes
+		_counts = new int[_num + 1];
+		_bounds = new int[(_num + 1) * 6];
+		for (int c = 1; c <= _num; c++) {
+			_bounds[c * 6] = _bounds[c * 6 + 1] = _bounds[c * 6 + 2] = Integer.MAX_VALUE;
+			_bounds[c * 6 + 3] = _bounds[c * 6 + 4] = _bounds[c * 6 + 5] = -1;
+		}
+		for (int z = 0; z < _d; z++) {
+			if (count[z] == 0) continue;
+			int[] box = _boxes[z], labels = _labels[z];
+			int bw = box[2] - box[0] + 1;
+			for (int y = box[1]; y <= box[3]; y++) {
+				for (int x = box[0]; x <= box[2]; x++) {
+					int i = (x - box[0]) + (y - box[1]) * bw;
+					if (labels[i] == 0) continue;
+					int c = id[offset[z] + labels[i]];
+					labels[i] = c;
+					_counts[c]++;
+					int b = c * 6;
+					_bounds[b] = Math.min(_bounds[b], x);
+					_bounds[b + 1] = Math.min(_bounds[b + 1], y);
+					_bounds[b + 2] = Math.min(_bounds[b + 2], z);
+					_bounds[b + 3] = Math.max(_bounds[b + 3], x);
+					_bounds[b + 4] = Math.max(_bounds[b + 4], y);
+					_bounds[b + 5] = Math.max(_bounds[b + 5], z);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Labels slice z with local ids, using the in-plane neighbourhood. The
+	 * labels cover the bounding box of the layer.
+	 *
+	 * @return the number of labels in the slice
+	 */
+	private int label_slice(int z) {
+		BitMask mask = _seg.getMask(z);
+		int[] box = _seg.get_layer_bounding_box(z);
+		if (box == null) {
+			return 0;
+		}
+		int bw = box[2] - box[0] + 1, bh = box[3] - box[1] + 1;
+		int[] labels = new int[bw * bh];
+		boolean diagonal = _nb != Neighbourhood.N6;
+
+		// a new label is only started after a background voxel or at the row start
+		int[] parent = new int[((bw + 1) / 2) * bh + 1];
+		int next = 1;
+		for (int y = 0; y < bh; y++) {
+			for (int x = 0; x < bw; x++) {
+				if (!mask.get(box[0] + x, box[1] + y)) continue;
+				int i = x + y * bw;
+				int l = 0;
+				if (x > 0) l = join(parent, l, labels[i - 1]);
+				if (y > 0) {
+					l = join(parent, l, labels[i - bw]);
+					if (diagonal && x > 0) l = join(parent, l, labels[i - bw - 1]);
+					if (diagonal && x + 1 < bw) l = join(parent, l, labels[i - bw + 1]);
+				}
+				if (l == 0) {
+					l = next++;
+					parent[l] = l;
+				}
+				labels[i] = l;
+			}
+		}
+
+		// compact local ids 1..count
+		int[] id = new int[next];
+		int count = 0;
+		for (int l = 1; l < next; l++) {
+			int root = find(parent, l);
+			id[l] = root == l ? ++count : id[root];
+		}
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = id[labels[i]];
+		}
+		_labels[z] = labels;
+		_boxes[z] = box;
+		return count;
+	}
+
+	/**
+	 * Returns the label for a voxel with neighbour label m, given the label l
+	 * found so far (0 for none), uniting both.
+	 */
+	private static int join(int[] parent, int l, int m) {
+		if (m == 0) return l;
+		if (l == 0) return m;
+		union(parent, l, m);
+		return l;
+	}
+
+	/**
+	 * Returns the in-plane offsets of the neighbours a voxel has in the slice
+	 * below.
+	 */
+	private int[][] slice_deltas() {
+		switch (_nb) {
+		case N18:
+			return new int[][] {{0, 0}, {-1, 0}, {1, 0}, {0, -1}, {0, 1}};
+		case N26:
+			return new int[][] {{0, 0}, {-1, 0}, {1, 0}, {0, -1}, {0, 1}, {-1, -1}, {1, -1}, {-1, 1}, {1, 1}};
+		default:
+			return new int[][] {{0, 0}};
+		}
+	}
+
+	/**
+	 * Returns the root of a label, halving the path on the way.
+	 */
+	private static int find(int[] parent, int l) {
+		while (parent[l] != l) {
+			parent[l] = parent[parent[l]];
+			l = parent[l];
+		}
+		return l;
+	}
+
+	/**
+	 * Unites the sets of two labels, the smaller root becomes the root.
+	 */
+	private static void union(int[] parent, int a, int b) {
+		a = find(parent, a);
+		b = find(parent, b);
+		if (a < b) {
+			parent[b] = a;
+		} else if (b < a) {
+			parent[a] = b;
+		}
+	}
+
+	/**
+	 * Runs the tasks in the common ForkJoinPool and waits for all of them.
+	 */
+	private static void run(List<Callable<Object>> tasks) {
+		try {
+			for (Future<Object> f : ForkJoinPool.commonPool().invokeAll(tasks)) {
+				f.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while labelling components");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new IllegalStateException(ex.getCause());
+		}
+	}
+}
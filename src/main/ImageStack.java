@@ -1,11 +1,25 @@
 package main;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.lang.ref.SoftReference;
 import java.io.*;
 import javax.swing.*;
 
 import misc.DiFile;
-import misc.DiFileInputStream;
+import misc.HeapVolume;
+import misc.IntensityIndex;
+import misc.LazyVolume;
+import misc.MappedVolume;
+import misc.Volume;
+import misc.VolumeStorage;
+import misc.WindowLut;
 import misc.MyObservable;
 
 /**
@@ -17,14 +31,24 @@ import misc.MyObservable;
  * @author  Karl-Ingo Friese
  */
 public class ImageStack extends MyObservable {
+	private static final int LOADER_THREADS = Runtime.getRuntime().availableProcessors();
+	private static final int WINDOW_LUTS = 8; // lookup tables kept for different rescale parameters and windows
+	// prints the wall and summed worker time of the parse and decode phase per load, -Dlabmed.load_timings=false turns it off
+	public static boolean report_load_timings = Boolean.parseBoolean(System.getProperty("labmed.load_timings", "true"));
 	private static ImageStack _instance = null;
 	private DiFile[] _dicom_files;
+	private Volume _volume;
+	private VolumeStorage _volume_storage = VolumeStorage.AUTO;
+	private long _slice_cache_budget = Runtime.getRuntime().maxMemory() / 4;
 	private DefaultListModel<String> _seg_names = new DefaultListModel<>();
 	private HashMap<String, Segment> _segment_map = new HashMap<>();
 	private String _dir_name = "";
 	private int _w, _h, _active = 0;
 	private int _max_val;
 	private int _window_width, _window_center;
+	private volatile WindowLut[] _window_luts = new WindowLut[0]; // most recently built first, never modified
+	private AtomicReferenceArray<SoftReference<IntensityIndex>> _intensity_index; // built on demand, may be collected
+	private boolean _use_intensity_index;
 
 	/**
 	 * Default Constructor.
@@ -41,43 +65,78 @@ public class ImageStack extends MyObservable {
 
 
 	/**
-	 * * Normalizes intensity to 0-255 greyscale
+	 * Normalizes intensity to 0-255 greyscale using the current window. The
+	 * result is looked up in a WindowLut, which is only built when no recent
+	 * table matches the window and the rescale parameters of the slice.
+	 * 
 	 * @param intensity intensity
+	 * @param z			the image the intensity belongs to
 	 * @return The scaled and normalized Intensity
 	 */
 	public int intensity_to_greyscale(int intensity, int z){
-		DiFile df = getDiFile(z);
+		if (intensity < 0 || intensity >= WindowLut.SIZE) {
+			DiFile df = getDiFile(z);
+			return WindowLut.greyscale(intensity, _window_center, _window_width, df.get_slope(), df.get_intercept());
+		}
+		return get_window_lut(z, _window_center, _window_width).grey(intensity);
+	}
 
-		// get byte storage format
-		int bits_stored = df.getBitsStored();
-
-		// init center and width if not given
-//		if (!df.is_window_center_given()) _window_center = (int) Math.pow(2, (float)(bits_stored - 1));
-//		if (!df.is_window_width_given()) _window_width = (int) Math.pow(2, bits_stored);
-
-		//apply scaling
-		int scaled = intensity * df.get_slope() + df.get_intercept();
-
-		//normalize to 0-255
-		int normalized;
-		int scaled_center = _window_center * df.get_slope() + df.get_intercept();
-		double lower_bound = _window_center - 0.5 - (_window_width - 1) / 2.0;
-		double upper_bound = _window_center - 0.5 + (_window_width - 1) / 2.0;
-		if (scaled <= lower_bound){
-			normalized = 0;
-		} else if (scaled > upper_bound){
-			normalized = 255;
-		} else {
-//			normalized = (int) Math.round((scaled - lower_bound)  * 255 / (upper_bound - lower_bound));
-			normalized = (int) Math.round(((scaled - _window_center - 0.5) / (_window_width - 1) + 0.5) * 255);
+	/**
+	 * Returns the lookup table mapping the raw intensities of image z to opaque
+	 * ARGB grey pixels for the current window. The array must not be modified.
+	 * 
+	 * @param z	the image
+	 * @return the ARGB table, indexed by intensity
+	 */
+	public int[] get_argb_lut(int z) {
+		return get_window_lut(z, _window_center, _window_width).argb();
+	}
+
+	/**
+	 * Returns the lookup table mapping the raw intensities of image z to opaque
+	 * ARGB grey pixels for the given window. The array must not be modified.
+	 * 
+	 * @param z			the image
+	 * @param center	the window center
+	 * @param width		the window width
+	 * @return the ARGB table, indexed by intensity
+	 */
+	public int[] get_argb_lut(int z, int center, int width) {
+		return get_window_lut(z, center, width).argb();
+	}
+
+	/**
+	 * Returns the WindowLut for image z. The last WINDOW_LUTS tables are kept,
+	 * so sagittal and frontal rows, which cross images with different rescale
+	 * parameters, do not rebuild a table per row. The array is replaced instead
+	 * of modified, so readers need no lock.
+	 */
+	private WindowLut get_window_lut(int z, int center, int width) {
+		DiFile df = getDiFile(z);
+		WindowLut[] luts = _window_luts;
+		for (WindowLut lut : luts) {
+			if (lut.matches(center, width, df.get_slope(), df.get_intercept())) {
+				return lut;
+			}
 		}
 
-		return normalized;
+		WindowLut lut = new WindowLut(center, width, df.get_slope(), df.get_intercept());
+		WindowLut[] updated = new WindowLut[Math.min(luts.length + 1, WINDOW_LUTS)];
+		updated[0] = lut;
+		System.arraycopy(luts, 0, updated, 1, updated.length - 1);
+		_window_luts = updated;
+		return lut;
 	}
 
 	/**
-	 * Reads all DICOM files from the given directory. All files are checked
-	 * for correctness before loading. The load process is implemented as a thread.
+	 * Reads all DICOM files from the given directory. Every file is opened and
+	 * read exactly once; files that are no DICOM images are skipped. The pixels
+	 * of all images are decoded into one Volume (see get_volume), or only when
+	 * they are first needed if the volume storage is LAZY. The load
+	 * process is implemented as a thread, which hands the per file work to a pool
+	 * of LOADER_THREADS workers and assembles the results in image number order.
+	 * When done it prints the time of the parse and decode phase (see
+	 * report_load_timings).
 	 * 
 	 * @param dir_name	string contaning the directory name.
 	 */
@@ -89,36 +148,75 @@ public class ImageStack extends MyObservable {
 		// loading thread
 		Thread t = new Thread() {
 			JProgressBar progress_bar;
-			
-			// returns the image number of a dicom file or -1 if something wents wrong
-			private int check_file(File file) {
-				int result = -1;
-				
+			ExecutorService pool;
+			AtomicLong parse_nanos = new AtomicLong();
+			AtomicLong decode_nanos = new AtomicLong();
+
+			// reads a file in a single pass. Returns null if it is no DICOM file or has no
+			// image number, throws if it went wrong after the image number was read.
+			private DiFile parse_file(File file) throws Exception {
+				DiFile df = null;
+
 				if (!file.isDirectory()) {
-		        	try {
-		        		DiFileInputStream candidate = new DiFileInputStream(file);
-		        		
-			    		if (candidate.skipHeader()) {
-			    			result = candidate.quickscan_for_image_number();
-			    		}				    	
-						candidate.close();
-		    		} catch (Exception ex) {
-						System.out.println("this will work after exercise 1");
-		    			result = -1;
-		    		}
+					df = new DiFile();
+					try {
+						df.initFromFile(file.getAbsolutePath());
+					} catch (Exception ex) {
+						if (df.getImageNumber() >= 0) {
+							throw ex;
+						}
+						df = null;
+					}
+					if (df != null && df.getImageNumber() < 0) {
+						df = null;
+					}
 				}
-				
-	            return result;
+
+				return df;
+			}
+
+			// schedules parse_file on the worker pool
+			private Future<DiFile> submit_parse(final File file) {
+				return pool.submit(new Callable<DiFile>() {
+					public DiFile call() throws Exception {
+						long start = System.nanoTime();
+						try {
+							return parse_file(file);
+						} finally {
+							parse_nanos.addAndGet(System.nanoTime() - start);
+						}
+					}
+				});
+			}
+
+			// schedules decoding the pixels of a file into slice z of the volume on the worker pool
+			private Future<DiFile> submit_decode(final DiFile df, final int z) {
+				return pool.submit(new Callable<DiFile>() {
+					public DiFile call() throws Exception {
+						long start = System.nanoTime();
+						try {
+							if (df.getImageWidth() != _volume.getWidth() || df.getImageHeight() != _volume.getHeight()) {
+								throw new Exception("Expected a "+_volume.getWidth()+"x"+_volume.getHeight()+" image, but got: "
+										+df.getImageWidth()+"x"+df.getImageHeight());
+							}
+							_volume.load_slice(z, df);
+							return df;
+						} finally {
+							decode_nanos.addAndGet(System.nanoTime() - start);
+						}
+					}
+				});
 			}
 			
-			// checks the DICOM files, retrieves their image number and loads them in the right order.
+			// reads all DICOM files once, puts them in the right order by their image number
+			// and decodes their pixels into the volume.
 			public void run() {
-				Hashtable<Integer, String> map_number_to_difile_name = new Hashtable<Integer, String>();
+				Hashtable<Integer, DiFile> map_number_to_difile = new Hashtable<Integer, DiFile>();
 				DiFile df;
 
 			    notifyObservers(new Message(Message.M_CLEAR));
 
-				JFrame progress_win = new JFrame("checking ...");
+				JFrame progress_win = new JFrame("loading ...");
 				progress_win.setResizable(false);
 				progress_win.setAlwaysOnTop(true);
 				
@@ -135,66 +233,102 @@ public class ImageStack extends MyObservable {
 				int main_height = (int)(LabMed.get_window().getSize().getHeight());
 				progress_win.setLocation((main_width-progress_win.getSize().width)/2, (main_height-progress_win.getSize().height)/2);
 				progress_win.setVisible(true);		
-								
-			    for (int i=0; i<files_unchecked.length; i++) {
-			    	int num = check_file(files_unchecked[i]);
-			    	if (num >= 0) {
-			    		map_number_to_difile_name.put(Integer.valueOf(num), files_unchecked[i].getAbsolutePath());			    					        		
-		        	}
-			    	progress_bar.setValue(i+1);
-			    }
-				
-			    progress_win.setTitle("loading ...");
-			    
-				Enumeration<Integer> e = map_number_to_difile_name.keys();
-		   	  	List<Integer> l = new ArrayList<Integer>();
-		   	  	while(e.hasMoreElements()) {
-		   	  		l.add((Integer)e.nextElement());
-				}
-				
-			    String[] file_names = new String[l.size()];
-		        Collections.sort(l);
-		        Iterator<Integer> it = l.iterator();
-		        int file_counter = 0;
-		        while (it.hasNext()) {
-		        	file_names[file_counter++] =  map_number_to_difile_name.get(it.next());
-		        }
-		        
-				progress_bar.setMaximum(file_names.length);
-				progress_bar.setValue(0);
 
-				_dicom_files = new DiFile[file_names.length];
-				
-				for (int i=0; i<file_names.length; i++) {
-			    	df = new DiFile();
-			    	try {
-			    		df.initFromFile(file_names[i]);
-			    	} catch (Exception ex) {
-			    		System.out.println(getClass()+"::initFromDirectory -> failed to open "+file_names[i]);
-			    		System.out.println(ex);
-			    		System.exit(0);
-			    	}
-			    	progress_bar.setValue(i+1);
-			    	_dicom_files[i] = df;
-
-					// initialize default image width and heigth from the first image read
-					if (_w==0) _w = df.getImageWidth();
-					if (_h==0) _h = df.getImageHeight();
-					if (_max_val == 0) _max_val = df.get_max_val();
-
-					if (df.is_window_center_given()) {
-						_window_center = df.get_window_center();
-					} else {
-						_window_center = (int) Math.pow(2, (float)(df.getBitsStored() - 1));
+				pool = Executors.newFixedThreadPool(LOADER_THREADS);
+				long start = System.nanoTime();
+
+				try {
+					List<Future<DiFile>> parsed = new ArrayList<Future<DiFile>>(files_unchecked.length);
+					for (int i=0; i<files_unchecked.length; i++) {
+						parsed.add(submit_parse(files_unchecked[i]));
+					}
+
+				    for (int i=0; i<files_unchecked.length; i++) {
+				    	try {
+				    		df = parsed.get(i).get();
+				    	} catch (ExecutionException ex) {
+				    		System.out.println(getClass()+"::initFromDirectory -> failed to open "+files_unchecked[i].getAbsolutePath());
+				    		System.out.println(ex.getCause());
+				    		System.exit(0);
+				    		return;
+				    	}
+				    	if (df != null) {
+				    		map_number_to_difile.put(Integer.valueOf(df.getImageNumber()), df);
+			        	}
+				    	progress_bar.setValue(i+1);
+				    }
+					long read = System.nanoTime();
+
+					Enumeration<Integer> e = map_number_to_difile.keys();
+			   	  	List<Integer> l = new ArrayList<Integer>();
+			   	  	while(e.hasMoreElements()) {
+			   	  		l.add((Integer)e.nextElement());
+					}
+			        Collections.sort(l);
+	
+					_dicom_files = new DiFile[l.size()];
+					for (int i=0; i<l.size(); i++) {
+						_dicom_files[i] = map_number_to_difile.get(l.get(i));
+					}
+
+					// the first image defines the image width and heigth
+					if (_dicom_files.length > 0) {
+						_w = _dicom_files[0].getImageWidth();
+						_h = _dicom_files[0].getImageHeight();
 					}
-					if (df.is_window_width_given()) {
-						_window_width = df.get_window_width();
-					} else {
-						_window_width = (int) Math.pow(2, df.getBitsStored());
+					_volume = create_volume(_w, _h, _dicom_files.length);
+					_intensity_index = new AtomicReferenceArray<SoftReference<IntensityIndex>>(_dicom_files.length);
+					_use_intensity_index = _volume instanceof HeapVolume
+							&& 3 * Volume.size_in_bytes(_w, _h, _dicom_files.length) <= Runtime.getRuntime().maxMemory() / 4;
+
+					List<Future<DiFile>> decoded = new ArrayList<Future<DiFile>>(_dicom_files.length);
+					for (int i=0; i<_dicom_files.length; i++) {
+						decoded.add(submit_decode(_dicom_files[i], i));
 					}
 
+				    progress_win.setTitle("decoding ...");
+					progress_bar.setMaximum(_dicom_files.length);
+					progress_bar.setValue(0);
+
+					for (int i=0; i<_dicom_files.length; i++) {
+				    	try {
+				    		df = decoded.get(i).get();
+				    	} catch (ExecutionException ex) {
+				    		System.out.println(getClass()+"::initFromDirectory -> failed to open "+_dicom_files[i].getFileName());
+				    		System.out.println(ex.getCause());
+				    		System.exit(0);
+				    		return;
+				    	}
+				    	progress_bar.setValue(i+1);
+	
+						if (_max_val == 0) _max_val = df.get_max_val();
+	
+						if (df.is_window_center_given()) {
+							_window_center = df.get_window_center();
+						} else {
+							_window_center = (int) Math.pow(2, (float)(df.getBitsStored() - 1));
+						}
+						if (df.is_window_width_given()) {
+							_window_width = df.get_window_width();
+						} else {
+							_window_width = (int) Math.pow(2, df.getBitsStored());
+						}
+	
+	
+						notifyObservers(new Message(Message.M_NEW_IMAGE_LOADED));
+					}
+					long loaded = System.nanoTime();
 
-					notifyObservers(new Message(Message.M_NEW_IMAGE_LOADED));
+					if (report_load_timings) {
+						System.out.println("ImageStack::initFromDirectory -> "+_dicom_files.length+" of "+files_unchecked.length
+								+" files on "+LOADER_THREADS+" threads in "+to_millis(loaded-start)+" ms"
+								+" (parse: "+to_millis(read-start)+" ms, "+to_millis(parse_nanos.get())+" ms in workers;"
+								+" decode: "+to_millis(loaded-read)+" ms, "+to_millis(decode_nanos.get())+" ms in workers)");
+					}
+				} catch (InterruptedException ex) {
+					System.out.println(getClass()+"::initFromDirectory -> interrupted");
+				} finally {
+					pool.shutdownNow();
 				}
 			    
 			    progress_win.setVisible(false);
@@ -204,6 +338,36 @@ public class ImageStack extends MyObservable {
 		t.start();	    
 	}
 
+	/**
+	 * Allocates the volume for a new series according to the volume storage
+	 * setting. AUTO keeps the voxels on the heap as long as they take at most
+	 * half of the maximum heap size and uses a mapped scratch file otherwise.
+	 * LAZY is never chosen automatically.
+	 */
+	private Volume create_volume(int w, int h, int d) {
+		VolumeStorage storage = _volume_storage;
+		if (storage == VolumeStorage.AUTO) {
+			boolean fits = Volume.size_in_bytes(w, h, d) <= Runtime.getRuntime().maxMemory() / 2;
+			storage = fits ? VolumeStorage.HEAP : VolumeStorage.MAPPED;
+		}
+
+		if (storage == VolumeStorage.LAZY) {
+			return new LazyVolume(w, h, d, _slice_cache_budget);
+		}
+		if (storage == VolumeStorage.MAPPED) {
+			try {
+				return new MappedVolume(w, h, d);
+			} catch (IOException ex) {
+				System.out.println(getClass()+"::create_volume -> no scratch file, using the heap: "+ex);
+			}
+		}
+		return new HeapVolume(w, h, d);
+	}
+
+	private static long to_millis(long nanos) {
+		return nanos / 1000000;
+	}
+
 	/**
 	 * Adds a new segment with the given name.
 	 * 
@@ -227,8 +391,56 @@ public class ImageStack extends MyObservable {
 		return seg;
 	}
 
+	/**
+	 * Tells the observers that the content of a segment has changed.
+	 * Notifys Observers with M_SEG_CHANGED Message. Object is the segment.
+	 * 
+	 * @param seg	the changed segment
+	 */
+	public void segmentChanged(Segment seg) {
+		notifyObservers(new Message(Message.M_SEG_CHANGED, seg));
+	}
+
 	public int get_intensity(int x, int y, int z){ // x is width, y is height, z is image number
-		return getDiFile(z).get_intensity(x, y);
+		return _volume.get(x, y, z);
+	}
+
+	public boolean is_in_range(int min, int max, int x, int y, int z){
+		return _volume.is_in_range(min, max, x, y, z);
+	}
+
+	/**
+	 * Returns the voxel intensities of the whole series.
+	 *
+	 * @return the volume, null if no series was loaded
+	 */
+	public Volume get_volume() {
+		return _volume;
+	}
+
+	/**
+	 * Returns the voxels of image z sorted by intensity. The index is built on
+	 * first use and softly referenced, so the garbage collector may drop it when
+	 * memory gets low; it is rebuilt then. An index takes 6 bytes per voxel on
+	 * the heap, three times the voxels themselves, so there is none if the
+	 * voxels are kept outside of the heap (mapped or lazy volume storage) or
+	 * the indices of all images would take more than a quarter of the heap;
+	 * they would only be collected and rebuilt over and over then.
+	 * 
+	 * @param z	the image
+	 * @return the intensity index of the image, null if there is none
+	 */
+	public IntensityIndex get_intensity_index(int z) {
+		if (!_use_intensity_index) {
+			return null;
+		}
+		SoftReference<IntensityIndex> ref = _intensity_index.get(z);
+		IntensityIndex index = ref == null ? null : ref.get();
+		if (index == null) {
+			index = new IntensityIndex(_volume.get_slice(z, new char[_w * _h]), _w * _h);
+			_intensity_index.set(z, new SoftReference<IntensityIndex>(index));
+		}
+		return index;
 	}
 
 	public int get_max_val(){
@@ -340,6 +552,44 @@ public class ImageStack extends MyObservable {
 	    notifyObservers(new Message(Message.M_NEW_ACTIVE_IMAGE, Integer.valueOf(i)));
 	}
 
+	/**
+	 * Returns where the voxels of the next loaded series will be stored.
+	 * 
+	 * @return the volume storage
+	 */
+	public VolumeStorage get_volume_storage() {
+		return _volume_storage;
+	}
+
+	/**
+	 * Sets where the voxels of the next loaded series will be stored
+	 * (see VolumeStorage). Does not affect the current series.
+	 * 
+	 * @param storage	the volume storage
+	 */
+	public void set_volume_storage(VolumeStorage storage) {
+		_volume_storage = storage;
+	}
+
+	/**
+	 * Returns the memory budget of the slice cache used by VolumeStorage.LAZY.
+	 * 
+	 * @return the budget in bytes
+	 */
+	public long get_slice_cache_budget() {
+		return _slice_cache_budget;
+	}
+
+	/**
+	 * Sets the memory budget of the slice cache used by VolumeStorage.LAZY
+	 * for the next loaded series.
+	 * 
+	 * @param bytes	the budget in bytes
+	 */
+	public void set_slice_cache_budget(long bytes) {
+		_slice_cache_budget = bytes;
+	}
+
 	public int get_window_center() {
 		return _window_center;
 	}
@@ -0,0 +1,395 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import misc.BitMask;
+import misc.TriangleMesh;
+import misc.Volume;
+
+/**
+ * Extracts surfaces with marching cubes, using the case table of MarchingCube:
+ * the surface of a segment, or the iso-surface of the voxel intensities for an
+ * iso value. The grid is walked one layer of cells at a time: the corners of a
+ * cell are read from two sampled planes, and each vertex is created once and
+ * shared through edge caches holding the vertex index of every x, y and z edge
+ * of the current layer. Nothing is allocated per cell, and the mesh goes into
+ * primitive arrays.
+ *
+ * Vertices are placed on the cube edges by linear interpolation of the sampled
+ * values. A segment is sampled as 1 (set) and 0 (unset) with the iso value
+ * 0.5, which puts its vertices at the edge midpoints. A corner is inside the
+ * surface if its value is at least the iso value.
+ *
+ * Corner i of a cell at (x, y, z) is bit i of the case index: 0 (x,y,z),
+ * 1 (x+s,y,z), 2 (x+s,y,z+s), 3 (x,y,z+s), 4 (x,y+s,z), 5 (x+s,y+s,z),
+ * 6 (x+s,y+s,z+s) and 7 (x,y+s,z+s), with s the step size.
+ *
+ * The cells are visited z layer by z layer, and row by row within a layer.
+ * Vertices are numbered in the order they are created. The triangles and
+ * vertex positions are those of the former per-cell loop in Viewport3d, but
+ * that loop walked x first, so triangles and vertex numbers come in a
+ * different order.
+ *
+ * extract_parallel splits the cell layers into slabs, one per core, which are
+ * extracted independently. The vertices on the plane between two slabs are
+ * created by both; when the slab meshes are joined, the upper slab's copies
+ * are replaced by the lower slab's vertices. Since the slabs are joined in z
+ * order and a slab creates its vertices and triangles in the order extract
+ * does, the joined arrays are the ones extract produces.
+ */
+public class MarchingCubeExtractor {
+	public static final int MIN_SLAB_DEPTH = 8;
+
+	private int[][] _table;
+	private int _step;
+	private int _w;
+	private int _gw, _gh, _gd;	// grid points per axis
+
+	/**
+	 * The state of one pass over the cell layers [_z0, _z1]. The x and y edge
+	 * caches of the planes below and above the current layer are swapped when
+	 * moving up; an entry is only valid if it is at least the stamp of its
+	 * plane, so the caches are never cleared.
+	 */
+	private class Slab implements Callable<Object> {
+		final Segment _seg;			// the segment, or null to sample _volume
+		final Volume _volume;
+		final float _iso;
+		final int _z0, _z1;
+		final int[] _from, _to;
+		final TriangleMesh _mesh = new TriangleMesh();
+		byte[] _lower = new byte[_gw * _gh], _upper = new byte[_gw * _gh];	// 1 for corners inside
+		float[] _lower_v = new float[_gw * _gh], _upper_v = new float[_gw * _gh];
+		char[] _buf;
+		int[] _lower_x = cache(), _lower_y = cache();
+		int[] _upper_x = cache(), _upper_y = cache();
+		final int[] _edge_z = cache();
+		int _lower_stamp, _upper_stamp;
+		int[] _bottom_x, _bottom_y;	// the x and y edge vertices of plane _z0
+		int[] _map;					// the vertex numbers in the joined mesh
+
+		Slab(Segment seg, Volume volume, float iso, int z0, int z1, int[] from, int[] to) {
+			_seg = seg;
+			_volume = volume;
+			_iso = iso;
+			_z0 = z0;
+			_z1 = z1;
+			_from = from;
+			_to = to;
+		}
+
+		/**
+		 * Extracts the cell layers of the slab. Afterwards _lower_x and _lower_y
+		 * hold the vertices of the top plane, valid from _lower_stamp.
+		 */
+		public Object call() {
+			int all = _gw * _gh;
+			int lower_num = sample(_z0, _lower, _lower_v);
+			for (int gz = _z0; gz <= _z1; gz++) {
+				int upper_num = sample(gz + 1, _upper, _upper_v);
+				_upper_stamp = _mesh.get_vertex_num();
+				if (lower_num + upper_num > 0 && lower_num + upper_num < 2 * all) {
+					march(gz);
+				}
+
+				if (gz == _z0) {
+					// keep the bottom plane for joining slabs
+					_bottom_x = _lower_x;
+					_bottom_y = _lower_y;
+					_lower_x = cache();
+					_lower_y = cache();
+				}
+				byte[] b = _lower; _lower = _upper; _upper = b;
+				float[] f = _lower_v; _lower_v = _upper_v; _upper_v = f;
+				int[] x = _lower_x; _lower_x = _upper_x; _upper_x = x;
+				int[] y = _lower_y; _lower_y = _upper_y; _upper_y = y;
+				_lower_stamp = _upper_stamp;
+				lower_num = upper_num;
+			}
+			return null;
+		}
+
+		/**
+		 * Emits the triangles of the cells in layer gz.
+		 */
+		private void march(int gz) {
+			for (int gy = _from[1]; gy <= _to[1]; gy++) {
+				for (int gx = _from[0]; gx <= _to[0]; gx++) {
+					int i = gx + gy * _gw;
+					int j = i + _gw;
+					int index = _lower[i] | _lower[i + 1] << 1 | _upper[i + 1] << 2 | _upper[i] << 3
+							| _lower[j] << 4 | _lower[j + 1] << 5 | _upper[j + 1] << 6 | _upper[j] << 7;
+					if (index == 0 || index == 255) {
+						continue;
+					}
+					for (int edge : _table[index]) {
+						_mesh.add_index(vertex(edge, gx, gy, gz));
+					}
+				}
+			}
+		}
+
+		/**
+		 * Returns the vertex on an edge of the cell (gx, gy, gz), creating it
+		 * if the edge has none yet.
+		 */
+		private int vertex(int edge, int gx, int gy, int gz) {
+			switch (edge) {
+			case 0: return edge_vertex(_lower_x, _lower_stamp, gx, gy, gz, 0, _lower_v);
+			case 1: return edge_vertex(_edge_z, _upper_stamp, gx + 1, gy, gz, 2, null);
+			case 2: return edge_vertex(_upper_x, _upper_stamp, gx, gy, gz + 1, 0, _upper_v);
+			case 3: return edge_vertex(_edge_z, _upper_stamp, gx, gy, gz, 2, null);
+			case 4: return edge_vertex(_lower_y, _lower_stamp, gx + 1, gy, gz, 1, _lower_v);
+			case 5: return edge_vertex(_upper_y, _upper_stamp, gx + 1, gy, gz + 1, 1, _upper_v);
+			case 6: return edge_vertex(_upper_y, _upper_stamp, gx, gy, gz + 1, 1, _upper_v);
+			case 7: return edge_vertex(_lower_y, _lower_stamp, gx, gy, gz, 1, _lower_v);
+			case 8: return edge_vertex(_lower_x, _lower_stamp, gx, gy + 1, gz, 0, _lower_v);
+			case 9: return edge_vertex(_edge_z, _upper_stamp, gx + 1, gy + 1, gz, 2, null);
+			case 10: return edge_vertex(_upper_x, _upper_stamp, gx, gy + 1, gz + 1, 0, _upper_v);
+			default: return edge_vertex(_edge_z, _upper_stamp, gx, gy + 1, gz, 2, null);
+			}
+		}
+
+		/**
+		 * Returns the vertex on the edge starting at grid point (gx, gy, gz)
+		 * and running along axis (0 = x, 1 = y, 2 = z), placed where the
+		 * linearly interpolated value reaches the iso value. plane holds the
+		 * values of the edge's plane, for z edges it is null.
+		 */
+		private int edge_vertex(int[] cache, int stamp, int gx, int gy, int gz, int axis, float[] plane) {
+			int i = gx + gy * _gw;
+			int v = cache[i];
+			if (v >= stamp) {
+				return v;
+			}
+
+			float a, b;
+			if (axis == 2) {
+				a = _lower_v[i];
+				b = _upper_v[i];
+			} else {
+				a = plane[i];
+				b = plane[axis == 0 ? i + 1 : i + _gw];
+			}
+			float t = (_iso - a) / (b - a) * _step;
+			v = _mesh.add_vertex(gx * _step + (axis == 0 ? t : 0),
+					gy * _step + (axis == 1 ? t : 0),
+					gz * _step + (axis == 2 ? t : 0));
+			cache[i] = v;
+			return v;
+		}
+
+		/**
+		 * Samples the grid points of plane gz.
+		 *
+		 * @return the number of grid points inside
+		 */
+		private int sample(int gz, byte[] inside, float[] values) {
+			if (_seg == null) {
+				return sample_volume(gz, inside, values);
+			}
+
+			// only the set mask bits are visited
+			Arrays.fill(inside, (byte) 0);
+			Arrays.fill(values, 0);
+			BitMask mask = _seg.getMask(gz * _step);
+			int num = 0;
+			for (int i = mask.nextSetBit(0); i >= 0; i = mask.nextSetBit(i + 1)) {
+				int y = i / _w, x = i - y * _w;
+				if (x % _step == 0 && y % _step == 0) {
+					int k = x / _step + y / _step * _gw;
+					inside[k] = 1;
+					values[k] = 1;
+					num++;
+				}
+			}
+			return num;
+		}
+
+		private int sample_volume(int gz, byte[] inside, float[] values) {
+			if (_buf == null) {
+				_buf = new char[_w * _volume.getHeight()];
+			}
+			char[] slice = _volume.get_slice(gz * _step, _buf);
+			int num = 0;
+			for (int gy = 0; gy < _gh; gy++) {
+				int row = gy * _step * _w;
+				for (int gx = 0; gx < _gw; gx++) {
+					int k = gx + gy * _gw;
+					float v = slice[row + gx * _step];
+					values[k] = v;
+					if (v >= _iso) {
+						inside[k] = 1;
+						num++;
+					} else {
+						inside[k] = 0;
+					}
+				}
+			}
+			return num;
+		}
+	}
+
+	/**
+	 * Constructor for extracting surfaces of segments of a given size.
+	 *
+	 * @param table	the case table, see MarchingCube
+	 * @param w		the width of the segment layers
+	 * @param h		the height of the segment layers
+	 * @param d		the number of segment layers
+	 * @param step	the cell size in voxels
+	 */
+	public MarchingCubeExtractor(int[][] table, int w, int h, int d, int step) {
+		_table = table;
+		_step = step;
+		_w = w;
+		_gw = (w - 1) / step + 1;
+		_gh = (h - 1) / step + 1;
+		_gd = (d - 1) / step + 1;
+	}
+
+	/**
+	 * Extracts the surface of a segment in the calling thread. Only cells
+	 * touching the bounding box of the segment are visited.
+	 *
+	 * @param seg	the segment
+	 * @return the mesh, in voxel coordinates
+	 */
+	public TriangleMesh extract(Segment seg) {
+		return extract(seg, null, 0.5f, 1);
+	}
+
+	/**
+	 * Like extract, but uses all cores of the common ForkJoinPool, with slabs
+	 * of at least MIN_SLAB_DEPTH cell layers.
+	 *
+	 * @param seg	the segment
+	 * @return the mesh, in voxel coordinates
+	 */
+	public TriangleMesh extract_parallel(Segment seg) {
+		return extract(seg, null, 0.5f, ForkJoinPool.getCommonPoolParallelism());
+	}
+
+	/**
+	 * Extracts the iso-surface of the voxel intensities in the calling thread,
+	 * the boundary between voxels below and voxels at or above the iso value.
+	 *
+	 * @param volume	the intensities, of the extractor's size
+	 * @param iso		the iso value
+	 * @return the mesh, in voxel coordinates
+	 */
+	public TriangleMesh extract(Volume volume, float iso) {
+		return extract(null, volume, iso, 1);
+	}
+
+	/**
+	 * Like extract(volume, iso), but uses all cores of the common ForkJoinPool.
+	 *
+	 * @param volume	the intensities, of the extractor's size
+	 * @param iso		the iso value
+	 * @return the mesh, in voxel coordinates
+	 */
+	public TriangleMesh extract_parallel(Volume volume, float iso) {
+		return extract(null, volume, iso, ForkJoinPool.getCommonPoolParallelism());
+	}
+
+	private TriangleMesh extract(Segment seg, Volume volume, float iso, int slab_num) {
+		if (_gw < 2 || _gh < 2 || _gd < 2) {
+			return new TriangleMesh();
+		}
+
+		// the cells [from, to] to visit, for a segment those reaching its box
+		int[] n = {_gw, _gh, _gd};
+		int[] from = new int[3], to = new int[3];
+		int[] box = seg != null ? seg.get_bounding_box() : null;
+		if (seg != null && box == null) {
+			return new TriangleMesh();
+		}
+		for (int a = 0; a < 3; a++) {
+			from[a] = box != null ? Math.max(0, (box[a] - 1) / _step) : 0;
+			to[a] = box != null ? Math.min(n[a] - 2, box[a + 3] / _step) : n[a] - 2;
+		}
+
+		int layers = to[2] - from[2] + 1;
+		slab_num = Math.max(1, Math.min(slab_num, layers / MIN_SLAB_DEPTH));
+		List<Slab> slabs = new ArrayList<Slab>();
+		for (int s = 0; s < slab_num; s++) {
+			slabs.add(new Slab(seg, volume, iso, from[2] + layers * s / slab_num, from[2] + layers * (s + 1) / slab_num - 1, from, to));
+		}
+		if (slab_num == 1) {
+			slabs.get(0).call();
+			return slabs.get(0)._mesh;
+		}
+
+		try {
+			for (Future<Object> f : ForkJoinPool.commonPool().invokeAll(slabs)) {
+				f.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while extracting surface");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new IllegalStateException(ex.getCause());
+		}
+		return join(slabs);
+	}
+
+	/**
+	 * Joins the slab meshes. The vertices of a slab are renumbered in their
+	 * order after those of the slabs below, except the ones on its bottom
+	 * plane, which are mapped to the same edge vertices of the slab below.
+	 */
+	private TriangleMesh join(List<Slab> slabs) {
+		TriangleMesh mesh = new TriangleMesh();
+		float[] v = new float[3];
+		Slab below = null;
+		for (Slab slab : slabs) {
+			int[] map = new int[slab._mesh.get_vertex_num()];
+			Arrays.fill(map, -1);
+			if (below != null) {
+				share(below._lower_x, below._lower_stamp, below._map, slab._bottom_x, map);
+				share(below._lower_y, below._lower_stamp, below._map, slab._bottom_y, map);
+			}
+			for (int i = 0; i < map.length; i++) {
+				if (map[i] < 0) {
+					slab._mesh.get_vertex(i, v);
+					map[i] = mesh.add_vertex(v[0], v[1], v[2]);
+				}
+			}
+			int[] indices = slab._mesh.get_indices();
+			for (int i = 0; i < indices.length; i++) {
+				mesh.add_index(map[indices[i]]);
+			}
+			slab._map = map;
+			below = slab;
+		}
+		return mesh;
+	}
+
+	/**
+	 * Maps the vertices of a bottom plane edge cache to the joined numbers of
+	 * the same edges in the top plane cache of the slab below.
+	 */
+	private static void share(int[] top, int top_stamp, int[] top_map, int[] bottom, int[] map) {
+		for (int i = 0; i < bottom.length; i++) {
+			if (bottom[i] >= 0 && top[i] >= top_stamp) {
+				map[bottom[i]] = top_map[top[i]];
+			}
+		}
+	}
+
+	private int[] cache() {
+		int[] cache = new int[_gw * _gh];
+		Arrays.fill(cache, -1);
+		return cache;
+	}
+}
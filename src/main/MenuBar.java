@@ -4,8 +4,12 @@ import java.awt.event.*;
 import javax.swing.*;
 
 import misc.DiFileFilter;
+import misc.Neighbourhood;
+import misc.VolumeStorage;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * This class represents the main menu of YaDiV (lab version).
@@ -65,6 +69,18 @@ public class MenuBar extends JMenuBar {
 		item.setEnabled(false);
 		_menuFile.add(item);
 		
+		JMenu storage_menu = new JMenu("Volume Storage");
+		ButtonGroup storage_group = new ButtonGroup();
+		String[] storage_names = {"Automatic", "Java Heap", "Mapped File", "Decode on Demand"};
+		for (int i=0; i<storage_names.length; i++) {
+			JRadioButtonMenuItem storage_item = new JRadioButtonMenuItem(storage_names[i]);
+			storage_item.addActionListener(setVolumeStorageListener);
+			storage_item.setSelected(i==0);
+			storage_group.add(storage_item);
+			storage_menu.add(storage_item);
+		}
+		_menuFile.add(storage_menu);
+
 		item = new JMenuItem(new String("Quit"), 'Q');
 		item.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent event) {
@@ -135,6 +151,14 @@ public class MenuBar extends JMenuBar {
 		item.addActionListener(toggleMarchingCubeRendering3d);
 		_menu3d.add(item);
 
+		item = new JCheckBoxMenuItem(new String("Parallel Marching Cubes"), true);
+		item.addActionListener(toggleParallelMarchingCube3d);
+		_menu3d.add(item);
+
+		item = new JCheckBoxMenuItem(new String("Show Iso-Surface Rendering"), false);
+		item.addActionListener(toggleIsoSurfaceRendering3d);
+		_menu3d.add(item);
+
 		_menu3d.addSeparator();
 
 		_no_entries3d = new JMenuItem(new String("no segmentations yet"));
@@ -151,6 +175,14 @@ public class MenuBar extends JMenuBar {
 		item.addActionListener(newRegionSegmentListener);
 		_menuTools.add(item);
 
+		item = new JMenuItem(new String("Zusammenhangskomponenten trennen"));
+		item.addActionListener(splitComponentsListener);
+		_menuTools.add(item);
+
+		item = new JMenuItem(new String("Segmentierungen verknüpfen"));
+		item.addActionListener(combineSegmentsListener);
+		_menuTools.add(item);
+
 		item = new JMenuItem(new String("Set Center / Width"));
 		item.addActionListener(newWindowListener);
 		_menuTools.add(item);
@@ -162,6 +194,10 @@ public class MenuBar extends JMenuBar {
 		item = new JMenuItem(new String("Set Step Size"));
 		item.addActionListener(newStepSizeListener);
 		_menuTools.add(item);
+
+		item = new JMenuItem(new String("Set Iso Value"));
+		item.addActionListener(newIsoValueListener);
+		_menuTools.add(item);
 		// -------------------------------------------------------------------------------------
 
 		add(_menuFile);
@@ -278,6 +314,24 @@ public class MenuBar extends JMenuBar {
 		}
 	};
 
+	/**
+	 * ActionListener for choosing where the voxels of the next series are stored.
+	 */
+	ActionListener setVolumeStorageListener = new ActionListener() {
+		public void actionPerformed(ActionEvent event) {
+			String name = event.getActionCommand();
+			if (name.equals("Java Heap")) {
+				LabMed.get_is().set_volume_storage(VolumeStorage.HEAP);
+			} else if (name.equals("Mapped File")) {
+				LabMed.get_is().set_volume_storage(VolumeStorage.MAPPED);
+			} else if (name.equals("Decode on Demand")) {
+				LabMed.get_is().set_volume_storage(VolumeStorage.LAZY);
+			} else {
+				LabMed.get_is().set_volume_storage(VolumeStorage.AUTO);
+			}
+		}
+	};
+
 	/**
 	 * Actionlistener for changing the 2d viewmode.
 	 */
@@ -340,6 +394,38 @@ public class MenuBar extends JMenuBar {
 		}
 	};
 
+	ActionListener toggleParallelMarchingCube3d = new ActionListener() {
+		public void actionPerformed(ActionEvent event) {
+			_v3d.parallel_marching_cube = !_v3d.parallel_marching_cube;
+			_v3d.update_mc_rendering();
+			_v3d.update_iso_rendering();
+		}
+	};
+
+	ActionListener toggleIsoSurfaceRendering3d = new ActionListener() {
+		public void actionPerformed(ActionEvent event) {
+			_v3d.show_iso_surface = !_v3d.show_iso_surface;
+			_v3d.update_iso_rendering();
+		}
+	};
+
+
+	/**
+	 * Adds the menu entries of a new segmentation and shows it in the 2d view.
+	 *
+	 * @param seg	the segmentation
+	 */
+	private void add_segment_items(Segment seg) {
+		_no_entries2d.setVisible(false);
+		_no_entries3d.setVisible(false);
+		_v2d.toggleSeg(seg);
+		JMenuItem item = new JCheckBoxMenuItem(seg.getName(), true);
+		item.addActionListener(toggleSegListener2d);
+		_menu2d.add(item);
+		item = new JCheckBoxMenuItem(seg.getName(), false);
+		item.addActionListener(toggleSegListener3d);
+		_menu3d.add(item);
+	}
 
 	/**
 	 * ActionListener for toggling a segmentation in the 2d viewport.
@@ -381,16 +467,8 @@ public class MenuBar extends JMenuBar {
 			} else {
 				String name = JOptionPane.showInputDialog(_win, "Name der Segmentierung");
 				if (name != null) {
-					_no_entries2d.setVisible(false);
-					_no_entries3d.setVisible(false);
 					Segment seg = is.createSegment(name, SegmentType.RANGE);
-					_v2d.toggleSeg(seg);
-					JMenuItem item = new JCheckBoxMenuItem(name, true);
-					item.addActionListener(toggleSegListener2d);
-					_menu2d.add(item);
-					item = new JCheckBoxMenuItem(name, false);
-					item.addActionListener(toggleSegListener3d);
-					_menu3d.add(item);
+					add_segment_items(seg);
 					_tools.showTool(new ToolRangeSelector(seg));
 				}
 			}
@@ -416,22 +494,117 @@ public class MenuBar extends JMenuBar {
 			} else {
 				String name = JOptionPane.showInputDialog(_win, "Name der Segmentierung");
 				if (name != null) {
-					_no_entries2d.setVisible(false);
-					_no_entries3d.setVisible(false);
 					Segment seg = is.createSegment(name, SegmentType.REGION);
-					_v2d.toggleSeg(seg);
-					JMenuItem item = new JCheckBoxMenuItem(name, true);
-					item.addActionListener(toggleSegListener2d);
-					_menu2d.add(item);
-					item = new JCheckBoxMenuItem(name, false);
-					item.addActionListener(toggleSegListener3d);
-					_menu3d.add(item);
+					add_segment_items(seg);
 					_tools.showTool(new ToolRegionSelector(seg));
 				}
 			}
 		}
 	};
 
+	/**
+	 * ActionListener for splitting a segmentation into its connected components
+	 * (N6 neighbourhood). The largest components become new segmentations, as
+	 * many as the limit of segmentations allows.
+	 */
+	ActionListener splitComponentsListener = new ActionListener() {
+		public void actionPerformed(ActionEvent event) {
+			ImageStack is = LabMed.get_is();
+			if (is.getSegmentNumber()==0) {
+				JOptionPane.showMessageDialog(_win,
+						"Keine Segmentierung vorhanden.",
+						"Inane error",
+						JOptionPane.ERROR_MESSAGE);
+			} else if (is.getSegmentNumber()==3) {
+				JOptionPane.showMessageDialog(_win,
+						"In der Laborversion werden nicht mehr als drei Segmentierungen benötigt.",
+						"Inane error",
+						JOptionPane.ERROR_MESSAGE);
+			} else {
+				Object[] names = is.getSegNames().toArray();
+				String name = (String) JOptionPane.showInputDialog(_win, "Segmentierung", "Zusammenhangskomponenten trennen",
+						JOptionPane.QUESTION_MESSAGE, null, names, names[0]);
+				if (name != null) {
+					ComponentLabeler labeler = new ComponentLabeler(is.getSegment(name), is, Neighbourhood.N6);
+
+					// component ids by decreasing size
+					Integer[] ids = new Integer[labeler.get_component_num()];
+					for (int i=0; i<ids.length; i++) {
+						ids[i] = i+1;
+					}
+					Arrays.sort(ids, new Comparator<Integer>() {
+						public int compare(Integer a, Integer b) {
+							return labeler.get_voxel_count(b) - labeler.get_voxel_count(a);
+						}
+					});
+
+					int num = Math.min(ids.length, 3-is.getSegmentNumber());
+					for (int i=0; i<num; i++) {
+						Segment seg = is.createSegment(name+" "+(i+1), SegmentType.REGION);
+						if (seg != null) {
+							labeler.extract(ids[i], seg);
+							add_segment_items(seg);
+						}
+					}
+					_v2d.update_view();
+				}
+			}
+		}
+	};
+
+	/**
+	 * ActionListener for combining a segmentation with another one (intersection,
+	 * union, symmetric difference, difference) or inverting it. The result
+	 * replaces the first segmentation.
+	 */
+	ActionListener combineSegmentsListener = new ActionListener() {
+		public void actionPerformed(ActionEvent event) {
+			ImageStack is = LabMed.get_is();
+			if (is.getSegmentNumber()==0) {
+				JOptionPane.showMessageDialog(_win,
+						"Keine Segmentierung vorhanden.",
+						"Inane error",
+						JOptionPane.ERROR_MESSAGE);
+				return;
+			}
+
+			Object[] names = is.getSegNames().toArray();
+			String name = (String) JOptionPane.showInputDialog(_win, "Segmentierung", "Segmentierungen verknüpfen",
+					JOptionPane.QUESTION_MESSAGE, null, names, names[0]);
+			if (name == null) {
+				return;
+			}
+			String[] ops = {"Schnitt mit", "Vereinigung mit", "Symmetrische Differenz mit", "Ohne", "Invertieren"};
+			String op = (String) JOptionPane.showInputDialog(_win, "Operation", "Segmentierungen verknüpfen",
+					JOptionPane.QUESTION_MESSAGE, null, ops, ops[0]);
+			if (op == null) {
+				return;
+			}
+
+			Segment seg = is.getSegment(name);
+			if (op.equals(ops[4])) {
+				seg.invert();
+			} else {
+				String other_name = (String) JOptionPane.showInputDialog(_win, name+" "+op, "Segmentierungen verknüpfen",
+						JOptionPane.QUESTION_MESSAGE, null, names, names[0]);
+				if (other_name == null) {
+					return;
+				}
+				Segment other = is.getSegment(other_name);
+				if (op.equals(ops[0])) {
+					seg.and(other);
+				} else if (op.equals(ops[1])) {
+					seg.or(other);
+				} else if (op.equals(ops[2])) {
+					seg.xor(other);
+				} else {
+					seg.andNot(other);
+				}
+			}
+			is.segmentChanged(seg);
+		}
+	};
+
 	/**
 	 * ActionListener for adding a new segmentation to the global image stack.
 	 */
@@ -486,4 +659,20 @@ public class MenuBar extends JMenuBar {
 			}
 		}
 	};
+
+	ActionListener newIsoValueListener = new ActionListener() {
+		public void actionPerformed(ActionEvent event) {
+			ImageStack is = LabMed.get_is();
+			if (is.getNumberOfImages()==0) {
+				JOptionPane.showMessageDialog(_win,
+						"Iso-Value-Einstellung ohne geöffneten DICOM Datensatz nicht möglich.",
+						"Inane error",
+						JOptionPane.ERROR_MESSAGE);
+			} else {
+				_no_entries2d.setVisible(false);
+				_no_entries3d.setVisible(false);
+				_tools.showTool(new ToolIsoValueSelector());
+			}
+		}
+	};
 }
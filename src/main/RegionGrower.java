@@ -0,0 +1,215 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import misc.BitMask;
+import misc.Volume;
+import misc.VoxelQueue;
+
+/**
+ * Region growing on a Volume: marks every voxel that is connected to a seed
+ * voxel (N6 neighbourhood) through voxels with an intensity in [min, max].
+ * The layers of the result are the visited set and the frontier is kept in a
+ * ring buffer of voxel indices, so growing allocates nothing per voxel and
+ * needs memory only in proportion to the frontier.
+ *
+ * grow_parallel splits the volume into slabs of consecutive slices, one per
+ * core. Each slab is filled by its own thread and only writes its own layers;
+ * voxels reached across a slab border are handed to the neighbouring slab,
+ * which continues from them in the next round. A round ends after each slab
+ * took at most ROUND_VOXELS voxels from its frontier, so the region spreads
+ * into the neighbouring slabs while the seed slab is still busy instead of
+ * after it is done, and all slabs the region reaches grow at the same time.
+ * The result is the same connected region as the one of grow.
+ */
+public class RegionGrower {
+	public static final int MIN_SLAB_DEPTH = 8;
+	public static final int ROUND_VOXELS = 1 << 14;
+
+	private Volume _volume;
+	private int _w, _h, _d;
+
+	/**
+	 * The slices [_z0, _z1) and their frontier. Voxels of the region found in
+	 * the slices next to the slab are collected in _out_low and _out_high.
+	 * Each call takes at most _budget voxels from the frontier.
+	 */
+	private class Slab implements Callable<Object> {
+		final int _z0, _z1, _min, _max;
+		final long _budget;
+		final BitMask[] _layers;
+		final VoxelQueue _queue = new VoxelQueue();
+		final VoxelQueue _out_low = new VoxelQueue();
+		final VoxelQueue _out_high = new VoxelQueue();
+
+		Slab(int z0, int z1, int min, int max, BitMask[] layers, long budget) {
+			_z0 = z0;
+			_z1 = z1;
+			_min = min;
+			_max = max;
+			_layers = layers;
+			_budget = budget;
+		}
+
+		/**
+		 * Adds a voxel of this slab to the region and the frontier unless it
+		 * already belongs to the region.
+		 */
+		void receive(long voxel) {
+			long slice = (long) _w * _h;
+			int z = (int) (voxel / slice);
+			int i = (int) (voxel - z * slice);
+			if (!_layers[z].get(i % _w, i / _w)) {
+				_layers[z].set(i % _w, i / _w, true);
+				_queue.push(voxel);
+			}
+		}
+
+		/**
+		 * Grows the region inside the slab until the frontier is empty or the
+		 * budget of the round is used up.
+		 */
+		public Object call() {
+			long slice = (long) _w * _h;
+			for (long n = 0; n < _budget && _queue.size() > 0; n++) {
+				long voxel = _queue.pop();
+				int z = (int) (voxel / slice);
+				int i = (int) (voxel - z * slice);
+				int y = i / _w;
+				int x = i - y * _w;
+
+				if (x + 1 < _w) visit(x + 1, y, z);
+				if (x > 0) visit(x - 1, y, z);
+				if (y + 1 < _h) visit(x, y + 1, z);
+				if (y > 0) visit(x, y - 1, z);
+				if (z + 1 < _d) visit(x, y, z + 1);
+				if (z > 0) visit(x, y, z - 1);
+			}
+			return null;
+		}
+
+		/**
+		 * Adds a voxel to the region and the frontier if it was not visited and
+		 * its intensity lies in [min, max]. Voxels outside the slab are only
+		 * checked for their intensity and handed to the neighbour slab.
+		 */
+		private void visit(int x, int y, int z) {
+			boolean inside = z >= _z0 && z < _z1;
+			if (inside && _layers[z].get(x, y)) {
+				return;
+			}
+			int intensity = _volume.get(x, y, z);
+			if (intensity >= _min && intensity <= _max) {
+				long voxel = x + (long) y * _w + z * (long) _w * _h;
+				if (inside) {
+					_layers[z].set(x, y, true);
+					_queue.push(voxel);
+				} else if (z < _z0) {
+					_out_low.push(voxel);
+				} else {
+					_out_high.push(voxel);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Constructor for growing regions in the given volume.
+	 *
+	 * @param volume	the intensities
+	 */
+	public RegionGrower(Volume volume) {
+		_volume = volume;
+		_w = volume.getWidth();
+		_h = volume.getHeight();
+		_d = volume.getDepth();
+	}
+
+	/**
+	 * Grows a region from a seed voxel in the calling thread. The seed is always
+	 * part of the region, every other voxel of the region lies in [min, max].
+	 * Set bits in layers are treated as already visited, so layers should be
+	 * cleared before.
+	 *
+	 * @param seed		the seed voxel (x, y, z)
+	 * @param min		the lower intensity bound (inclusive)
+	 * @param max		the upper intensity bound (inclusive)
+	 * @param layers	one bitmask per slice, receives the region
+	 */
+	public void grow(int[] seed, int min, int max, BitMask[] layers) {
+		grow(seed, min, max, layers, 1);
+	}
+
+	/**
+	 * Like grow, but uses all cores of the common ForkJoinPool, with slabs of at
+	 * least MIN_SLAB_DEPTH slices.
+	 *
+	 * @param seed		the seed voxel (x, y, z)
+	 * @param min		the lower intensity bound (inclusive)
+	 * @param max		the upper intensity bound (inclusive)
+	 * @param layers	one bitmask per slice, receives the region
+	 */
+	public void grow_parallel(int[] seed, int min, int max, BitMask[] layers) {
+		grow(seed, min, max, layers, ForkJoinPool.getCommonPoolParallelism());
+	}
+
+	private void grow(int[] seed, int min, int max, BitMask[] layers, int slab_num) {
+		slab_num = Math.max(1, Math.min(slab_num, _d / MIN_SLAB_DEPTH));
+		// a single slab has no neighbours to wait for, it grows in one round
+		long budget = slab_num > 1 ? ROUND_VOXELS : Long.MAX_VALUE;
+		Slab[] slabs = new Slab[slab_num];
+		for (int s = 0; s < slab_num; s++) {
+			slabs[s] = new Slab(_d * s / slab_num, _d * (s + 1) / slab_num, min, max, layers, budget);
+		}
+
+		// the seed is part of the region, whatever its intensity
+		Slab first = slabs[0];
+		for (Slab slab : slabs) {
+			if (seed[2] >= slab._z0 && seed[2] < slab._z1) first = slab;
+		}
+		first.receive(seed[0] + (long) seed[1] * _w + seed[2] * (long) _w * _h);
+
+		List<Slab> active = new ArrayList<Slab>();
+		active.add(first);
+		while (!active.isEmpty()) {
+			// grow inside all slabs with a frontier
+			if (active.size() == 1) {
+				active.get(0).call();
+			} else {
+				try {
+					for (Future<Object> f : ForkJoinPool.commonPool().invokeAll(active)) {
+						f.get();
+					}
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("interrupted while growing region");
+				} catch (ExecutionException ex) {
+					if (ex.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) ex.getCause();
+					}
+					throw new IllegalStateException(ex.getCause());
+				}
+			}
+
+			// hand the voxels found across the slab borders to the neighbours
+			for (int s = 0; s < slab_num; s++) {
+				while (slabs[s]._out_low.size() > 0) {
+					slabs[s - 1].receive(slabs[s]._out_low.pop());
+				}
+				while (slabs[s]._out_high.size() > 0) {
+					slabs[s + 1].receive(slabs[s]._out_high.pop());
+				}
+			}
+
+			active.clear();
+			for (Slab slab : slabs) {
+				if (slab._queue.size() > 0) active.add(slab);
+			}
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package main;
+
+import misc.BitMask;
+import misc.Volume;
+import misc.VoxelQueue;
+
+/**
+ * Region growing for a fixed seed and a variance that changes interactively.
+ * The region for a variance v (see Segment.create_region_segment) grows
+ * monotonously with v, so every voxel has an admission variance: the smallest
+ * variance whose region contains it. The preview computes admission variances
+ * only as far as needed, with one bucket of frontier voxels per variance
+ * (a bottleneck flood fill): raising the variance continues from the buckets
+ * instead of starting over, and the voxels admitted at each variance are kept
+ * in lists, so moving the slider in either direction only touches the voxels
+ * whose membership changes.
+ */
+public class RegionPreview {
+	public static final int MAX_VARIANCE = 100;
+
+	private static final byte UNSEEN = 0;
+	private static final byte QUEUED = 1;
+	private static final byte NEVER = -1;	// outside of the range even for MAX_VARIANCE
+
+	private Volume _volume;
+	private Segment _seg;
+	private int[] _seed;
+	private int _w, _h, _d;
+	private byte[] _level;						// the smallest variance admitting an intensity, MAX_VARIANCE+1 if none
+	private byte[][] _state;					// per slice: UNSEEN, QUEUED, NEVER or 2 + admission variance
+	private VoxelQueue[] _buckets = new VoxelQueue[MAX_VARIANCE + 1];	// frontier voxels by their level
+	private VoxelQueue[] _admitted = new VoxelQueue[MAX_VARIANCE + 1];	// voxels by admission variance
+	private int _grown = -1;	// admission variances are known up to here
+	private int _shown = -1;	// the variance shown in the segment, -1 before the first show
+	private int _edit_count;	// the edit count of the segment after the last show
+
+	/**
+	 * Constructor for a preview of the regions grown from a seed voxel.
+	 *
+	 * @param volume	the intensities
+	 * @param seed		the seed voxel (x, y, z)
+	 * @param seg		the segment showing the region
+	 */
+	public RegionPreview(Volume volume, int[] seed, Segment seg) {
+		_volume = volume;
+		_seg = seg;
+		_seed = seed.clone();
+		_w = volume.getWidth();
+		_h = volume.getHeight();
+		_d = volume.getDepth();
+		_state = new byte[_d][];
+
+		// the same bounds as create_region_segment, they widen with the variance
+		int s = volume.get(seed[0], seed[1], seed[2]);
+		int[] lo = new int[MAX_VARIANCE + 1], hi = new int[MAX_VARIANCE + 1];
+		for (int v = 0; v <= MAX_VARIANCE; v++) {
+			lo[v] = (int) (s - s * v / 100.0);
+			hi[v] = (int) (s + s * v / 100.0);
+		}
+		_level = new byte[1 << 16];
+		for (int i = 0; i < _level.length; i++) {
+			int v = 0;
+			while (v <= MAX_VARIANCE && (i < lo[v] || i > hi[v])) v++;
+			_level[i] = (byte) v;
+		}
+
+		for (int v = 0; v <= MAX_VARIANCE; v++) {
+			_buckets[v] = new VoxelQueue();
+			_admitted[v] = new VoxelQueue();
+		}
+
+		// the seed is part of every region, whatever its intensity
+		state(_seed[2])[_seed[0] + _seed[1] * _w] = QUEUED;
+		_buckets[0].push(_seed[0] + (long) _seed[1] * _w + _seed[2] * (long) _w * _h);
+	}
+
+	/**
+	 * Returns true if the preview grows from the given seed into the given segment.
+	 */
+	public boolean is_for(int[] seed, Segment seg) {
+		return seg == _seg && seed[0] == _seed[0] && seed[1] == _seed[1] && seed[2] == _seed[2];
+	}
+
+	/**
+	 * Makes the segment show the region for a variance. The first call replaces
+	 * the segment content, later calls only change the voxels admitted between
+	 * the old and the new variance. If the segment was edited by someone else
+	 * since the last call (see Segment.get_edit_count), its content is replaced
+	 * again.
+	 *
+	 * @param variance	the allowed deviation in percent of the seed intensity, 0..MAX_VARIANCE
+	 */
+	public void show(int variance) {
+		variance = Math.max(0, Math.min(MAX_VARIANCE, variance));
+		grow_to(variance);
+
+		if (_shown < 0 || _seg.get_edit_count() != _edit_count) {
+			_seg.clear();
+			set(0, variance, true);
+		} else if (variance > _shown) {
+			set(_shown + 1, variance, true);
+		} else if (variance < _shown) {
+			set(variance + 1, _shown, false);
+		}
+		_shown = variance;
+		_edit_count = _seg.get_edit_count();
+	}
+
+	/**
+	 * Sets or unsets the voxels admitted at the variances [from, to].
+	 */
+	private void set(int from, int to, boolean value) {
+		long slice = (long) _w * _h;
+		for (int v = from; v <= to; v++) {
+			VoxelQueue list = _admitted[v];
+			for (int k = 0; k < list.size(); k++) {
+				long voxel = list.get(k);
+				int z = (int) (voxel / slice);
+				int i = (int) (voxel - z * slice);
+				BitMask mask = _seg.getMask(z);
+				synchronized (mask) {
+					mask.set(i, value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes the admission variances up to variance.
+	 */
+	private void grow_to(int variance) {
+		long slice = (long) _w * _h;
+		while (_grown < variance) {
+			int v = ++_grown;
+			VoxelQueue bucket = _buckets[v];
+			while (bucket.size() > 0) {
+				long voxel = bucket.pop();
+				int z = (int) (voxel / slice);
+				int i = (int) (voxel - z * slice);
+				int y = i / _w;
+				int x = i - y * _w;
+				_state[z][i] = (byte) (2 + v);
+				_admitted[v].push(voxel);
+
+				if (x + 1 < _w) visit(x + 1, y, z, v);
+				if (x > 0) visit(x - 1, y, z, v);
+				if (y + 1 < _h) visit(x, y + 1, z, v);
+				if (y > 0) visit(x, y - 1, z, v);
+				if (z + 1 < _d) visit(x, y, z + 1, v);
+				if (z > 0) visit(x, y, z - 1, v);
+			}
+			_buckets[v] = null;
+		}
+	}
+
+	/**
+	 * Queues a voxel reached from a voxel admitted at variance v. It is admitted
+	 * at v as well if its intensity is within the bounds for v, otherwise at the
+	 * variance of its intensity.
+	 */
+	private void visit(int x, int y, int z, int v) {
+		byte[] state = state(z);
+		int i = x + y * _w;
+		if (state[i] != UNSEEN) {
+			return;
+		}
+		int level = _level[_volume.get(x, y, z)];
+		if (level > MAX_VARIANCE) {
+			state[i] = NEVER;
+			return;
+		}
+		state[i] = QUEUED;
+		_buckets[Math.max(level, v)].push(x + (long) y * _w + z * (long) _w * _h);
+	}
+
+	private byte[] state(int z) {
+		if (_state[z] == null) {
+			_state[z] = new byte[_w * _h];
+		}
+		return _state[z];
+	}
+}
@@ -1,8 +1,13 @@
 package main;
 
 import misc.BitMask;
+import misc.IntensityIndex;
 
-import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 
 enum SegmentType {
@@ -25,6 +30,15 @@ public class Segment {
 	private int _h;				// Bitmask height
 	private BitMask[] _layers;	// each segment contains an array of n bitmasks
 	private SegmentType _segment_type = null;
+	private volatile Range _range;			// the range defining the layers, null if they are not defined by a range
+	private int _range_version = 0;			// the version of the latest range
+	private AtomicIntegerArray _layer_version;	// the range version each layer was computed for
+	private int[] _layer_min, _layer_max;	// the range each layer was thresholded with
+	private AtomicInteger _edit_count = new AtomicInteger();	// changed by every edit through the segment's methods
+
+	private static final int RANGE_TASK_LAYERS = 4;
+	private static final int UNKNOWN_RANGE = Integer.MIN_VALUE; // the layer was not made by a range segmentation
+	private static final ThreadLocal<char[]> SLICE_BUF = new ThreadLocal<char[]>(); // per thread buffer for get_slice
 	
 	/**
 	 * Constructor for new segment objects.
@@ -41,88 +55,461 @@ public class Segment {
 		this._segment_type = type;
 		_color = 0xff00ff;		
 		_layers = new BitMask[layer_num];
+		_layer_min = new int[layer_num];
+		_layer_max = new int[layer_num];
+		_layer_version = new AtomicIntegerArray(layer_num);
 		
 		for (int i=0; i<layer_num; i++) {
 			_layers[i] = new BitMask(_w,_h);
+			// an empty layer is the empty range
+			_layer_min[i] = 1;
+			_layer_max[i] = 0;
+		}
+	}
+
+	private enum LayerOp {
+		AND,
+		OR,
+		XOR,
+		AND_NOT,
+		INVERT
+	}
+
+	/**
+	 * An immutable range segmentation request.
+	 */
+	private static class Range {
+		final int _min, _max, _version;
+		final ImageStack _slices;
+
+		Range(int min, int max, int version, ImageStack slices) {
+			_min = min;
+			_max = max;
+			_version = version;
+			_slices = slices;
 		}
 	}
 
+	/**
+	 * Turns the segment into a lazy range segment: it is defined as the voxels
+	 * whose intensity lies in [min, max], but the layers are only computed when
+	 * they are accessed by getMask or is_in_mask (or by materialize). Computed
+	 * layers are kept until the range changes. Returns at once, a materialize
+	 * job for an older range stops after the layers it is working on.
+	 * 
+	 * @param min		the lower bound (inclusive)
+	 * @param max		the upper bound (inclusive)
+	 * @param slices	the image stack
+	 */
+	public synchronized void set_range(int min, int max, ImageStack slices) {
+		Range range = _range;
+		if (range != null && range._min == min && range._max == max) {
+			return;
+		}
+		_range = new Range(min, max, ++_range_version, slices);
+		_edit_count.incrementAndGet();
+	}
+
+	/**
+	 * Sets every voxel of the segment whose intensity lies in [min, max]. The
+	 * slices are distributed over all cores. Layers already thresholded with a
+	 * nearby range are updated incrementally (see threshold_layer), the others
+	 * are thresholded as a whole. Returns when the segment is done.
+	 * 
+	 * @param min		the lower bound (inclusive)
+	 * @param max		the upper bound (inclusive)
+	 * @param slices	the image stack
+	 */
 	public void create_range_seg(int min, int max, ImageStack slices){
-		for( int i = 0; i < slices.getNumberOfImages(); i++){
-			BitMask mask = _layers[i];
-			for( int y = 0; y < _h; y++){
-				for( int x = 0; x < _w; x++){
-					mask.set(x,y, slices.getDiFile(i).is_in_range(min, max, x, y));
+		set_range(min, max, slices);
+		materialize();
+	}
+
+	/**
+	 * Starts a range segmentation in the common ForkJoinPool and returns at once.
+	 * A job for an older range is cancelled: it stops after the layers it is
+	 * working on.
+	 * 
+	 * @param min		the lower bound (inclusive)
+	 * @param max		the upper bound (inclusive)
+	 * @param slices	the image stack
+	 * @param on_done	called in a pool thread when the job completes without being
+	 * 					cancelled, may be null
+	 * @return the job
+	 */
+	public ForkJoinTask<?> create_range_seg_async(int min, int max, ImageStack slices, Runnable on_done){
+		set_range(min, max, slices);
+		return materialize_async(on_done);
+	}
+
+	/**
+	 * Computes all layers of a lazy range segment that are not up to date, using
+	 * all cores. Used by code that needs the whole volume, like the 3d views.
+	 * Returns when all layers are done, or when the range was changed meanwhile.
+	 */
+	public void materialize() {
+		materialize_async(null).join();
+	}
+
+	/**
+	 * Starts computing all layers of a lazy range segment that are not up to date
+	 * in the common ForkJoinPool and returns at once. The job stops after the
+	 * layers it is working on when the range is changed.
+	 * 
+	 * @param on_done	called in a pool thread when all layers are done, may be null
+	 * @return the job
+	 */
+	public ForkJoinTask<?> materialize_async(final Runnable on_done) {
+		final Range range = _range;
+		return ForkJoinPool.commonPool().submit(new Runnable() {
+			public void run() {
+				if (range != null) {
+					new RangeTask(range, 0, _layers.length).invoke();
+				}
+				if (on_done != null && _range == range) {
+					on_done.run();
 				}
 			}
-		}
+		});
 	}
 
-	private boolean _is_valid_pixel(int[] pixel, ImageStack slices){
-		if(pixel[0] < 0 || pixel[0] >= _w) return false;
-		if(pixel[1] < 0 || pixel[1] >= _h) return false;
-		if(pixel[2] < 0 || pixel[2] >= slices.getNumberOfImages()) return false;
-		return true;
+	/**
+	 * Computes layer i if the segment is a lazy range segment and the layer is
+	 * not up to date. Layers are locked individually, so different layers can
+	 * be computed concurrently.
+	 */
+	private void ensure_layer(int i) {
+		Range range = _range;
+		if (range == null || _layer_version.get(i) == range._version) {
+			return;
+		}
+		synchronized (_layers[i]) {
+			range = _range;
+			if (range == null || _layer_version.get(i) == range._version) {
+				return;
+			}
+			threshold_layer(i, range._min, range._max, range._slices);
+			_layer_version.set(i, range._version);
+		}
 	}
 
-	public boolean is_in_region(int[] pixel, int min, int max, BitMask[] tested, ImageStack slices){
-		if(!_is_valid_pixel(pixel, slices)) return false;
-		if(tested[pixel[2]].get(pixel[0], pixel[1])) return false;
+	/**
+	 * Computes a range of layers, splitting it in halves down to
+	 * RANGE_TASK_LAYERS layers per task.
+	 */
+	private class RangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Range _task_range;
+		private final int _from, _to;
 
-		return slices.getDiFile(pixel[2]).is_in_range(min, max, pixel[0], pixel[1]);
+		RangeTask(Range range, int from, int to) {
+			_task_range = range;
+			_from = from;
+			_to = to;
+		}
+
+		protected void compute() {
+			if (_to - _from > RANGE_TASK_LAYERS) {
+				int mid = (_from + _to) >>> 1;
+				invokeAll(new RangeTask(_task_range, _from, mid), new RangeTask(_task_range, mid, _to));
+				return;
+			}
+
+			for (int i = _from; i < _to; i++) {
+				if (_range != _task_range) {
+					return; // the range was changed
+				}
+				ensure_layer(i);
+			}
+		}
 	}
 
+	/**
+	 * Makes layer i hold the voxels with an intensity in [min, max]. If the layer
+	 * holds a range already, only voxels whose membership can change are visited:
+	 * those with intensities in [min(a,min), max(a,min)-1] and [min(b,max)+1,
+	 * max(b,max)] for the old range [a, b]. They are found in the intensity index
+	 * of the slice. If they make up more than a quarter of the slice, or there is
+	 * no index, the whole slice is thresholded. Must hold the lock of the layer.
+	 */
+	private void threshold_layer(int i, int min, int max, ImageStack slices) {
+		int old_min = _layer_min[i], old_max = _layer_max[i];
+		if (old_min == min && old_max == max) {
+			return;
+		}
 
+		BitMask mask = _layers[i];
+		int n = _w * _h;
+		boolean updated = false;
+		IntensityIndex index = old_min != UNKNOWN_RANGE ? slices.get_intensity_index(i) : null;
+		if (index != null) {
+			int[] lo = new int[2], hi = new int[2];
+			if (old_min > old_max) {
+				lo[0] = min; hi[0] = max;			// nothing was set
+				lo[1] = 1; hi[1] = 0;
+			} else if (min > max) {
+				lo[0] = old_min; hi[0] = old_max;	// nothing will be set
+				lo[1] = 1; hi[1] = 0;
+			} else {
+				lo[0] = Math.min(old_min, min); hi[0] = Math.max(old_min, min) - 1;
+				lo[1] = Math.min(old_max, max) + 1; hi[1] = Math.max(old_max, max);
+			}
 
-	public void create_region_segment(int[] seed_pixel, int variance, ImageStack slices){
-		//clear old segmentation
-		for (int i = 0; i < slices.getNumberOfImages(); i++){
-			_layers[i].clear();
+			int[] from = new int[2], to = new int[2];
+			int changed = 0;
+			for (int r = 0; r < 2; r++) {
+				if (lo[r] <= hi[r]) {
+					from[r] = index.lower_bound(lo[r]);
+					to[r] = index.lower_bound(hi[r] + 1);
+					changed += to[r] - from[r];
+				}
+			}
+
+			if (changed <= n / 4) {
+				for (int r = 0; r < 2; r++) {
+					for (int k = from[r]; k < to[r]; k++) {
+						int v = index.intensity(k);
+						mask.set(index.voxel(k), v >= min && v <= max);
+					}
+				}
+				updated = true;
+			}
 		}
 
-		Queue<int[]> queue = new LinkedList<>();
-		queue.add(seed_pixel);
-		_layers[seed_pixel[2]].set(seed_pixel[0], seed_pixel[1], true);
-		BitMask[] tested = new BitMask[slices.getNumberOfImages()];
-		for (int i=0; i < slices.getNumberOfImages(); i++) {
-			tested[i] = new BitMask(_w,_h);
+		if (!updated) {
+			char[] buf = SLICE_BUF.get();
+			if (buf == null || buf.length < n) {
+				buf = new char[n];
+				SLICE_BUF.set(buf);
+			}
+			mask.threshold(slices.get_volume().get_slice(i, buf), min, max);
 		}
+		_layer_min[i] = min;
+		_layer_max[i] = max;
+	}
+
+	/**
+	 * Replaces the segment by the region grown from a seed voxel: all voxels
+	 * that are connected to the seed (N6 neighbourhood) through voxels whose
+	 * intensity differs from the seed intensity by at most variance percent.
+	 * The region is grown into masks of its own and copied into the layers
+	 * under their locks, so readers never see a layer being written.
+	 * 
+	 * @param seed_pixel	the seed voxel (x, y, z)
+	 * @param variance		the allowed deviation in percent of the seed intensity
+	 * @param slices		the image stack
+	 */
+	public void create_region_segment(int[] seed_pixel, int variance, ImageStack slices){
+		//clear old segmentation
+		clear();
 
-        int seed_intensity = LabMed.get_is().get_intensity(seed_pixel[0], seed_pixel[1], seed_pixel[2]);
+		int seed_intensity = slices.get_intensity(seed_pixel[0], seed_pixel[1], seed_pixel[2]);
 		int min_val = (int) (seed_intensity - seed_intensity * variance / 100.0);
 		int max_val = (int) (seed_intensity + seed_intensity * variance / 100.0);
 
-		while (queue.size() != 0){
-			int[] current_pixel = queue.remove();
-			// get N6 neighbourhood
-			int[][] neighbours = new int[6][];
-			for (int i = 0; i < 6; i++){
-				neighbours[i] = Arrays.copyOf(current_pixel, 3);
+		BitMask[] region = new BitMask[_layers.length];
+		for (int i = 0; i < region.length; i++) {
+			region[i] = new BitMask(_w, _h);
+		}
+		new RegionGrower(slices.get_volume()).grow_parallel(seed_pixel, min_val, max_val, region);
+		for (int i = 0; i < _layers.length; i++) {
+			synchronized (_layers[i]) {
+				_layers[i].or(region[i]);
 			}
+		}
+		_edit_count.incrementAndGet();
+	}
 
-			neighbours[0][0] = current_pixel[0] + 1;
-			neighbours[1][0] = current_pixel[0] - 1;
-			neighbours[2][1] = current_pixel[1] + 1;
-			neighbours[3][1] = current_pixel[1] - 1;
-			neighbours[4][2] = current_pixel[2] + 1;
-			neighbours[5][2] = current_pixel[2] - 1;
-
-			for(int i = 0; i < 6; i++){
-				int[] pixel = neighbours[i];
-				if (!_is_valid_pixel(pixel, slices)) continue;
-				if(is_in_region(pixel, min_val, max_val, tested, slices)){
-					queue.add(pixel);
-					_layers[pixel[2]].set(pixel[0], pixel[1], true);
-				}
-				tested[pixel[2]].set(pixel[0], pixel[1], true);
+	/**
+	 * Unsets all voxels. Afterwards the layers are no longer defined by a range
+	 * and may be set directly (through getMask); a layer still being computed
+	 * for the old range is done once we hold its lock.
+	 */
+	public void clear() {
+		synchronized (this) {
+			_range = null;
+		}
+		for (int i = 0; i < _layers.length; i++){
+			synchronized (_layers[i]) {
+				_layers[i].clear();
+				_layer_min[i] = _layer_max[i] = UNKNOWN_RANGE;
 			}
+		}
+		_edit_count.incrementAndGet();
+	}
+
+	/**
+	 * Returns a number that changes whenever the segment is edited through its
+	 * own methods (set_range, clear, the region and the set operations), so
+	 * code keeping derived state can tell that it is stale. Voxels set directly
+	 * through getMask are not counted.
+	 * 
+	 * @return the edit count
+	 */
+	public int get_edit_count() {
+		return _edit_count.get();
+	}
+
+	/**
+	 * Keeps the voxels that are also in other (intersection).
+	 * 
+	 * @param other	a segment of the same size
+	 */
+	public void and(Segment other) {
+		edit_layers(other, LayerOp.AND);
+	}
+
+	/**
+	 * Adds the voxels of other (union).
+	 * 
+	 * @param other	a segment of the same size
+	 */
+	public void or(Segment other) {
+		edit_layers(other, LayerOp.OR);
+	}
+
+	/**
+	 * Keeps the voxels that are in exactly one of both segments.
+	 * 
+	 * @param other	a segment of the same size
+	 */
+	public void xor(Segment other) {
+		edit_layers(other, LayerOp.XOR);
+	}
+
+	/**
+	 * Removes the voxels of other (difference).
+	 * 
+	 * @param other	a segment of the same size
+	 */
+	public void andNot(Segment other) {
+		edit_layers(other, LayerOp.AND_NOT);
+	}
+
+	/**
+	 * Inverts the segment (complement).
+	 */
+	public void invert() {
+		edit_layers(null, LayerOp.INVERT);
+	}
+
+	/**
+	 * Returns the number of voxels in the segment.
+	 * 
+	 * @return the voxel count
+	 */
+	public long cardinality() {
+		long count = 0;
+		for (int i = 0; i < _layers.length; i++){
+			count += get_layer_count(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of voxels in a layer. The count is kept up to date by
+	 * the bitmask, so this is cheap.
+	 * 
+	 * @param i	the layer number
+	 * @return the voxel count of the layer
+	 */
+	public int get_layer_count(int i) {
+		ensure_layer(i);
+		synchronized (_layers[i]) {
+			return _layers[i].cardinality();
+		}
+	}
 
+	/**
+	 * Returns true if a layer contains no voxel.
+	 * 
+	 * @param i	the layer number
+	 * @return true if the layer is empty
+	 */
+	public boolean is_layer_empty(int i) {
+		return get_layer_count(i) == 0;
+	}
+
+	/**
+	 * Returns the bounding box of the voxels in a layer.
+	 * 
+	 * @param i	the layer number
+	 * @return {x0, y0, x1, y1}, all inclusive, or null if the layer is empty
+	 */
+	public int[] get_layer_bounding_box(int i) {
+		ensure_layer(i);
+		synchronized (_layers[i]) {
+			return _layers[i].get_bounding_box();
+		}
+	}
 
+	/**
+	 * Returns the bounding box of the whole segment, computing the layers of a
+	 * lazy range segment first.
+	 * 
+	 * @return {x0, y0, z0, x1, y1, z1}, all inclusive, or null if the segment is empty
+	 */
+	public int[] get_bounding_box() {
+		materialize();
+		int[] box = null;
+		for (int i = 0; i < _layers.length; i++){
+			int[] layer_box = get_layer_bounding_box(i);
+			if (layer_box == null) {
+				continue;
+			}
+			if (box == null) {
+				box = new int[] {layer_box[0], layer_box[1], i, layer_box[2], layer_box[3], i};
+			} else {
+				box[0] = Math.min(box[0], layer_box[0]);
+				box[1] = Math.min(box[1], layer_box[1]);
+				box[3] = Math.max(box[3], layer_box[2]);
+				box[4] = Math.max(box[4], layer_box[3]);
+				box[5] = i;
+			}
 		}
+		return box;
+	}
 
+	/**
+	 * Applies a word level operation to all layers. Afterwards the layers are
+	 * no longer defined by a range. Each layer of other is copied under its own
+	 * lock before the lock of our layer is taken, so no thread ever holds two
+	 * layer locks and a.and(b) may run concurrently with b.or(a).
+	 */
+	private void edit_layers(Segment other, LayerOp op) {
+		materialize();
+		if (other != null) {
+			other.materialize();
+		}
+		synchronized (this) {
+			_range = null;
+		}
+		for (int i = 0; i < _layers.length; i++){
+			BitMask operand = null;
+			if (other != null) {
+				BitMask layer = other.getMask(i);
+				operand = new BitMask(_w, _h);
+				synchronized (layer) {
+					operand.or(layer);
+				}
+			}
+			synchronized (_layers[i]) {
+				BitMask mask = _layers[i];
+				switch (op) {
+				case AND: mask.and(operand); break;
+				case OR: mask.or(operand); break;
+				case XOR: mask.xor(operand); break;
+				case AND_NOT: mask.andNot(operand); break;
+				case INVERT: mask.invert(); break;
+				}
+				_layer_min[i] = _layer_max[i] = UNKNOWN_RANGE;
+			}
+		}
+		_edit_count.incrementAndGet();
 	}
 
 	public boolean is_in_mask(int x, int y, int z){
+		ensure_layer(z);
 		BitMask mask = _layers[z];
 		return mask.get(x,y);
 	}
@@ -137,12 +524,16 @@ public class Segment {
 	}
 
 	/**
-	 * Returns the Bitmask of a single layer.
+	 * Returns the Bitmask of a single layer, computing it first if the segment
+	 * is a lazy range segment. Code changing the mask must hold its lock
+	 * (synchronized on the mask), like the segment's own methods do, since
+	 * other threads read the layer and its bounding box under that lock.
 	 * 
 	 * @param i	the layer number
 	 * @return	the coresponding bitmask
 	 */
 	public BitMask getMask(int i) {
+		ensure_layer(i);
 		return _layers[i];
 	}
 
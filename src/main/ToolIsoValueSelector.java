@@ -0,0 +1,68 @@
+package main;
+
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import java.awt.*;
+
+/**
+ * GUI for choosing the intensity of the iso-surface shown in the 3d view.
+ * The surface is extracted again when the slider is released.
+ */
+public class ToolIsoValueSelector extends JPanel{
+    private static final long serialVersionUID = 1L;
+    private int _iso_value;
+    private JSlider _iso_value_slider;
+    private JLabel _iso_label;
+
+    /**
+     * Default Constructor. Creates the GUI element for selecting the
+     * intensity of the iso-surface
+     *
+     */
+    public ToolIsoValueSelector() {
+
+        final ImageStack slices = ImageStack.getInstance();
+        JLabel iso_sel_title = new JLabel("Edit iso-surface value");
+
+        // the range is given by the bits_stored value in the current dicom series
+        int range_max = slices.get_max_val();
+        _iso_value = Math.min(LabMed.get_v3d().get_iso_value(), range_max);
+
+        _iso_label = new JLabel("Iso value: " + _iso_value);
+
+        _iso_value_slider = new JSlider(0, range_max, _iso_value);
+        _iso_value_slider.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                JSlider source = (JSlider) e.getSource();
+                _iso_value = source.getValue();
+                _iso_label.setText("Iso value: " + _iso_value);
+                if (!source.getValueIsAdjusting()) {
+                    // the surface is only extracted once the slider is released
+                    LabMed.get_v3d().set_iso_value(_iso_value);
+                    LabMed.get_v3d().update_iso_rendering();
+                }
+            }
+        });
+
+
+        setLayout(new GridBagLayout());
+        GridBagConstraints c = new GridBagConstraints();
+        c.weighty = 0.3;
+        c.fill = GridBagConstraints.BOTH;
+        c.insets = new Insets(2, 2, 2, 2); // top,left,bottom,right
+        c.weightx = 0.1;
+        c.gridx = 0;
+        c.gridy = 0;
+        this.add(iso_sel_title, c);
+
+
+        c.weightx = 0;
+        c.gridx = 0;
+        c.gridy = 1;
+        this.add(_iso_label, c);
+        c.gridx = 0;
+        c.gridy = 2;
+        this.add(_iso_value_slider, c);
+    }
+}
@@ -19,6 +19,7 @@ public class ToolPane extends JPanel {
 	private JPanel _window_selector = null;
 	private JPanel _distance_selector = null;
 	private JPanel _step_size_selector = null;
+	private JPanel _iso_value_selector = null;
 
 	/**
 	 * Default Constructor. Creates an empty ToolPane with no active panel.
@@ -74,6 +75,11 @@ public class ToolPane extends JPanel {
 				_tab_pane.addTab("Step Size", panel);
 				_step_size_selector = panel;
 			}
+		} else if (panel instanceof ToolIsoValueSelector){
+			if (_iso_value_selector == null) {
+				_tab_pane.addTab("Iso Value", panel);
+				_iso_value_selector = panel;
+			}
 		}
 
 		this.validate();
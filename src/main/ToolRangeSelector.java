@@ -71,8 +71,7 @@ public class ToolRangeSelector extends JPanel  {
 				if (source.getValueIsAdjusting()) {
 					_min = (int)source.getValue();
 					System.out.println("_min_slider stateChanged: "+_min);
-					_seg.create_range_seg(_min, _max, slices);
-					LabMed.get_v2d().update_view();
+					update_segmentation(slices);
 				}
 			}
 		});		
@@ -84,8 +83,7 @@ public class ToolRangeSelector extends JPanel  {
 				if (source.getValueIsAdjusting()) {
 					_max = (int)source.getValue();
 					System.out.println("_max_slider stateChanged: "+_max);
-					_seg.create_range_seg(_min, _max, slices);
-					LabMed.get_v2d().update_view();
+					update_segmentation(slices);
 				}
 			}
 		});
@@ -126,5 +124,16 @@ public class ToolRangeSelector extends JPanel  {
 		c.gridx = 2; c.gridy = 3; this.add(_max_slider, c);
 		
 		// setBackground(Color.blue);
-	}	
+	}
+
+	/**
+	 * Sets the new range of the segmentation and updates the 2d view. The
+	 * layers are computed in the background, the render thread computes the
+	 * ones it shows first if they are not done yet. A job for an older range
+	 * stops when the slider moves on, so the EDT never waits for the layers.
+	 */
+	private void update_segmentation(ImageStack slices) {
+		_seg.create_range_seg_async(_min, _max, slices, null);
+		LabMed.get_v2d().update_view();
+	}
 }
@@ -6,6 +6,10 @@ import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import java.awt.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * GUI for making min-max based range segmentations.
@@ -15,9 +19,19 @@ import java.awt.*;
  */
 public class ToolRegionSelector extends JPanel  {
 	private static final long serialVersionUID = 1L;
+	// one preview thread for all tool instances, a replaced tool leaves no idle thread behind
+	private static final ExecutorService _previewer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ToolRegionSelector preview");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 	private int _variance;
 	private int[] _seed_pixel;
 	private Segment _seg;
+	private RegionPreview _preview;	// only used by the preview thread
+	private AtomicReference<Runnable> _pending = new AtomicReference<Runnable>();
 	private JList<String> _seg_list;
 	private JSlider _variance_slider;
 	private JButton _seg_start_button;
@@ -74,9 +88,21 @@ public class ToolRegionSelector extends JPanel  {
 				if (source.getModel().isPressed()) {
 					_seed_pixel = LabMed.get_v2d().get_seed_pixel();
 					System.out.println("_variance_slider stateChanged: "+_variance);
-					_seg.create_region_segment(_seed_pixel, _variance, slices);
-					LabMed.get_v2d().update_view();
-					LabMed.get_v3d().update_view();
+					final int[] seed = _seed_pixel;
+					final Segment seg = _seg;
+					final int variance = _variance;
+					// in the preview thread, so it never runs while a preview writes the segment
+					_previewer.execute(new Runnable() {
+						public void run() {
+							seg.create_region_segment(seed, variance, slices);
+							EventQueue.invokeLater(new Runnable() {
+								public void run() {
+									LabMed.get_v2d().update_view();
+									LabMed.get_v3d().update_view();
+								}
+							});
+						}
+					});
 				}
 			}
 		});
@@ -86,11 +112,9 @@ public class ToolRegionSelector extends JPanel  {
 			public void stateChanged(ChangeEvent e) {
 				JSlider source = (JSlider) e.getSource();
 				if (source.getValueIsAdjusting()) {
-//					_seed_pixel = LabMed.get_v2d().get_seed_pixel();
 					_variance = (int)source.getValue();
 					System.out.println("_variance_slider stateChanged: "+_variance);
-//					_seg.create_region_segment(_seed_pixel, _variance, slices);
-//					LabMed.get_v2d().update_view();
+					update_preview(slices);
 				}
 			}
 		});
@@ -118,5 +142,49 @@ public class ToolRegionSelector extends JPanel  {
 		c.gridx = 1; c.gridy = 3; this.add(_variance_slider, c);
 
 		// setBackground(Color.blue);
+	}
+
+	/**
+	 * Shows the region for the current seed and variance in the 2d view. The
+	 * preview is kept while seed and segment stay the same, so dragging the
+	 * slider only changes the voxels between the old and the new variance.
+	 * It is grown in the preview thread; slider moves coming in while it is
+	 * busy are coalesced, only the latest one is shown.
+	 */
+	private void update_preview(final ImageStack slices) {
+		_seed_pixel = LabMed.get_v2d().get_seed_pixel();
+		final int[] seed = _seed_pixel;
+		final Segment seg = _seg;
+		final int variance = _variance;
+		Runnable task = new Runnable() {
+			public void run() {
+				if (_preview == null || !_preview.is_for(seed, seg)) {
+					_preview = new RegionPreview(slices.get_volume(), seed, seg);
+				}
+				_preview.show(variance);
+				EventQueue.invokeLater(new Runnable() {
+					public void run() {
+						LabMed.get_v2d().update_view();
+					}
+				});
+			}
+		};
+
+		// only start the preview thread if it is idle, otherwise it picks up this task
+		if (_pending.getAndSet(task) == null) {
+			_previewer.execute(new Runnable() {
+				public void run() {
+					Runnable latest = _pending.getAndSet(null);
+					if (latest == null) {
+						return;
+					}
+					try {
+						latest.run();
+					} catch (RuntimeException ex) {
+						System.out.println(ToolRegionSelector.this.getClass()+"::update_preview -> preview failed: "+ex);
+					}
+				}
+			});
+		}
 	}	
 }
@@ -37,6 +37,7 @@ public class ToolStepSizeSelector extends JPanel{
                     System.out.println("step size slider stateChanged: " + _step_size);
                     LabMed.get_v3d().set_step_size(_step_size);
                     LabMed.get_v3d().update_mc_rendering();
+                    LabMed.get_v3d().update_iso_rendering();
                 }
             }
         });
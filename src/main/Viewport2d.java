@@ -8,8 +8,13 @@ import java.awt.Graphics;
 import java.awt.event.MouseListener;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.DefaultListModel;
 import javax.swing.JList;
@@ -20,8 +25,10 @@ import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
 import misc.DiFile;
+import misc.ImagePool;
 import misc.MyObservable;
 import misc.MyObserver;
+import misc.Volume;
 import misc.ViewMode;
 import misc.BitMask;
 
@@ -32,12 +39,12 @@ import misc.BitMask;
  */
 public class Viewport2d extends Viewport implements MyObserver {
 	private static final long serialVersionUID = 1L;
-	// the background image needs a pixel array, an image object and a MemoryImageSource
-	private BufferedImage _bg_img;
+	// the frame currently displayed by the Panel2d, only accessed in the EDT
+	private Frame _frame;
 
-	// each segmentation image needs the same, those are stored in a hashtable
-	// and referenced by the segmentation name
-	private Hashtable<String, BufferedImage> _map_seg_name_to_img;
+	// the latest render request not yet picked up by the render thread
+	private AtomicReference<RenderRequest> _pending = new AtomicReference<RenderRequest>();
+	private ExecutorService _renderer;
 	
 	// this is the gui element where we actualy draw the images	
 	private Panel2d _panel2d;
@@ -56,10 +63,55 @@ public class Viewport2d extends Viewport implements MyObserver {
 
 	private int[] _seed_pixel = new int[3];
 
+	// images that are currently not displayed, reused by the render thread
+	private ImagePool _image_pool = new ImagePool();
+
+	// buffer for volumes that copy a slice when it is read (see Volume.get_slice),
+	// only used by the render thread
+	private char[] _slice_buf;
+
 	public int active_transversal = 0;
 	public int active_frontal = 0;
 	public int active_saggital = 0;
 
+	/**
+	 * Private class: everything the render thread needs to know to compute a
+	 * frame, taken from the viewport state in the EDT. Requests are immutable,
+	 * so the render thread never reads fields that the EDT changes.
+	 */
+	private static class RenderRequest {
+		final ViewMode _mode;
+		final int _active, _w, _h;
+		final boolean _show_bg;
+		final int _window_center, _window_width;
+		final LinkedHashMap<String, Segment> _segs;
+
+		RenderRequest(ViewMode mode, int active, int w, int h, boolean show_bg, int window_center,
+				int window_width, Map<String, Segment> segs) {
+			_mode = mode;
+			_active = active;
+			_w = w;
+			_h = h;
+			_show_bg = show_bg;
+			_window_center = window_center;
+			_window_width = window_width;
+			_segs = new LinkedHashMap<String, Segment>(segs);
+		}
+	}
+
+	/**
+	 * Private class: a rendered background image and one image per shown
+	 * segmentation, all of the same size.
+	 */
+	private static class Frame {
+		final BufferedImage _bg_img;
+		final LinkedHashMap<String, BufferedImage> _seg_imgs = new LinkedHashMap<String, BufferedImage>();
+
+		Frame(BufferedImage bg_img) {
+			_bg_img = bg_img;
+		}
+	}
+
 	/**
 	 * Private class, implementing the GUI element for displaying the 2d data.
 	 * Implements the MouseListener Interface.
@@ -103,11 +155,11 @@ public class Viewport2d extends Viewport implements MyObserver {
 		 * paint should never be called directly but via the repaint() method.
 		 */
 		public void paint(Graphics g) {
-			g.drawImage(_bg_img, 0, 0, this.getWidth(), this.getHeight(), this);
+			Frame frame = _frame;
+			g.drawImage(frame._bg_img, 0, 0, this.getWidth(), this.getHeight(), this);
 			
-			Enumeration<BufferedImage> segs = _map_seg_name_to_img.elements();	
-			while (segs.hasMoreElements()) {
-				g.drawImage(segs.nextElement(), 0, 0,  this.getWidth(), this.getHeight(), this);
+			for (BufferedImage seg_img : frame._seg_imgs.values()) {
+				g.drawImage(seg_img, 0, 0,  this.getWidth(), this.getHeight(), this);
 			}
 		}
 	}
@@ -172,13 +224,20 @@ public class Viewport2d extends Viewport implements MyObserver {
 		_slice_names.addElement(" ----- ");
 
 		// create an empty 10x10 image as default
-		_bg_img = new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
-		final int[] bg_pixels = ((DataBufferInt) _bg_img.getRaster().getDataBuffer()).getData();
+		BufferedImage bg_img = new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
+		final int[] bg_pixels = ((DataBufferInt) bg_img.getRaster().getDataBuffer()).getData();
 		for (int i=0; i<bg_pixels.length; i++) {
 			bg_pixels[i] = 0xff000000;
 		}
+		_frame = new Frame(bg_img);
 
-		_map_seg_name_to_img = new Hashtable<String, BufferedImage>();
+		_renderer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Viewport2d renderer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 
 		// The image selector needs to know which images are to select
 		_img_sel = new ImageSelector();
@@ -194,6 +253,7 @@ public class Viewport2d extends Viewport implements MyObserver {
 	/**
 	 * This is private method is called when the current image width + height don't
 	 * fit anymore (can happen after loading new DICOM series or switching viewmode).
+	 * The images themselves are taken from the pool by the render thread.
 	 * (see e.g. exercise 2)
 	 */
 	private void reallocate() {
@@ -207,174 +267,165 @@ public class Viewport2d extends Viewport implements MyObserver {
 			_w = _slices.getImageWidth();
 			_h = _slices.getNumberOfImages();
 		}
-
-		//sanity check, should never occur
-		if(_w <= 0 || _h <= 0) return;
-
-		// create background image
-		_bg_img = new BufferedImage(_w, _h, BufferedImage.TYPE_INT_ARGB);
-
-		// create image for segment layers
-		for (String seg_name : _map_name_to_seg.keySet()) {
-			BufferedImage seg_img = new BufferedImage(_w, _h, BufferedImage.TYPE_INT_ARGB);
-
-			_map_seg_name_to_img.put(seg_name, seg_img);
-		}
 	}
 	
 	/*
-	 * Calculates the background image and segmentation layer images and forces a repaint.
-	 * This function will be needed for several exercises after the first one.
+	 * Requests a new frame with the current slice, window and segmentations. The
+	 * frame is calculated by the render thread and shown when it is done; requests
+	 * coming in while it is busy are coalesced, only the latest one is rendered.
 	 * @see Viewport#update_view()
 	 */
 	public void update_view() {
+		// _w and _h need to be initialized BEFORE filling the image array !
 		reallocate();
-		if (_slices.getNumberOfImages() == 0) {
-			return;
-		}
-		
-		// these are two variables you might need in exercise #2
-		// int active_img_id = _slices.getActiveImageID();
-		// DiFile active_file = _slices.getDiFile(active_img_id);
 
-		// _w and _h need to be initialized BEFORE filling the image array !
-		if (_bg_img==null || _bg_img.getWidth(null)!=_w || _bg_img.getHeight(null)!=_h) {
-			reallocate();
+		//sanity check, nothing loaded yet
+		if (_slices.getNumberOfImages() == 0 || _w <= 0 || _h <= 0) {
+			return;
 		}
 
-		// rendering the background picture
-		if (_show_bg) {
-			// this is the place for the code displaying a single DICOM image in the 2d viewport (exercise 2)
-			//
-			// the easiest way to set a pixel of an image is the setRGB method
-			// example: _bg_img.setRGB(x,y, 0xff00ff00)
-			//                                AARRGGBB
-			// the resulting image will be used in the Panel2d::paint() method
-
-
+		RenderRequest request = new RenderRequest(_view_mode, _slices.getActiveImageID(), _w, _h, _show_bg,
+				_slices.get_window_center(), _slices.get_window_width(), _map_name_to_seg);
 
-			if(_view_mode == ViewMode.TRANSVERSAL){
-				//get active file
-				int z = _slices.getActiveImageID();
+		// only start the render thread if it has not yet been asked for a frame,
+		// otherwise it picks up this request instead of the older one
+		if (_pending.getAndSet(request) == null) {
+			_renderer.execute(new Runnable() {
+				public void run() {
+					RenderRequest latest = _pending.getAndSet(null);
+					if (latest == null) {
+						return;
+					}
+					try {
+						final Frame frame = render(latest);
+						EventQueue.invokeLater(new Runnable() {
+							public void run() {
+								show_frame(frame);
+							}
+						});
+					} catch (RuntimeException ex) {
+						System.out.println(Viewport2d.this.getClass()+"::update_view -> rendering failed: "+ex);
+					}
+				}
+			});
+		}
+	}
 
-				//iterate over pixel values
-				for (int y = 0; y < _w; y++){
-					for (int x = 0; x < _h; x++){
-						int greyscale = _slices.get_greyscale(x, y, z);
-						int argb = (0xff<<24) + (greyscale<<16) + (greyscale<<8) + greyscale;
-						_bg_img.setRGB(x, y, argb);
+	/**
+	 * Replaces the displayed frame and returns the images of the old one to the
+	 * pool. Must be called in the EDT, which is the only thread painting frames.
+	 */
+	private void show_frame(Frame frame) {
+		Frame old = _frame;
+		_frame = frame;
+		repaint();
 
+		_image_pool.release(old._bg_img);
+		for (BufferedImage seg_img : old._seg_imgs.values()) {
+			_image_pool.release(seg_img);
+		}
+	}
 
-					}
+	/**
+	 * Calculates the background image and segmentation layer images of a frame.
+	 * Runs in the render thread.
+	 */
+	private Frame render(RenderRequest r) {
+		int w = r._w, h = r._h;
+		Frame frame = new Frame(_image_pool.acquire(w, h));
+
+		// rendering the background picture, written straight into the pixel array of
+		// the image in scanline order (index x + y * w) using the window lookup table
+		final int[] bg_pixels = ((DataBufferInt) frame._bg_img.getRaster().getDataBuffer()).getData();
+		if (r._show_bg) {
+			Volume vol = _slices.get_volume();
+
+			if(r._mode == ViewMode.TRANSVERSAL){
+				//get active slice, row-major like the image
+				int z = r._active;
+				if (_slice_buf == null || _slice_buf.length < w * h) _slice_buf = new char[w * h];
+				char[] voxels = vol.get_slice(z, _slice_buf);
+				int[] lut = _slices.get_argb_lut(z, r._window_center, r._window_width);
+
+				for (int i = 0; i < w * h; i++){
+					bg_pixels[i] = lut[voxels[i]];
 				}
 			}
-			else if(_view_mode == ViewMode.SAGITTAL){
-				//get active file
-				int x = _slices.getActiveImageID();
-
-				//iterate over pixel values
-				for (int y = 0; y < _w; y++){
-					for (int z = 0; z < _h; z++){
-						int greyscale = _slices.get_greyscale(x, y, z);
-						int argb = (0xff<<24) + (greyscale<<16) + (greyscale<<8) + greyscale;
-						_bg_img.setRGB(y, z, argb);
+			else if(r._mode == ViewMode.SAGITTAL){
+				//image x is the volume y, image y is the slice
+				int x = r._active;
+				for (int z = 0; z < h; z++){
+					int[] lut = _slices.get_argb_lut(z, r._window_center, r._window_width);
+					int row = z * w;
+					for (int y = 0; y < w; y++){
+						bg_pixels[row + y] = lut[vol.get(x, y, z)];
 					}
 				}
 			}
-			else if(_view_mode == ViewMode.FRONTAL){
-				//get active file
-				int y = _slices.getActiveImageID();
-
-				//iterate over pixel values
-				for (int x = 0; x < _w; x++){
-					for (int z = 0; z < _h; z++){
-						int greyscale = _slices.get_greyscale(x, y, z);
-						int argb = (0xff<<24) + (greyscale<<16) + (greyscale<<8) + greyscale;
-						_bg_img.setRGB(x, z, argb);
+			else if(r._mode == ViewMode.FRONTAL){
+				//image x is the volume x, image y is the slice
+				int y = r._active;
+				for (int z = 0; z < h; z++){
+					int[] lut = _slices.get_argb_lut(z, r._window_center, r._window_width);
+					int row = z * w;
+					for (int x = 0; x < w; x++){
+						bg_pixels[row + x] = lut[vol.get(x, y, z)];
 					}
 				}
 			}
-
-
 		} else {
-			// faster: access the data array directly (see below)
-			final int[] bg_pixels = ((DataBufferInt) _bg_img.getRaster().getDataBuffer()).getData();
-			for (int i = 0; i<bg_pixels.length; i++) {
-				bg_pixels[i] = 0xff000000;
-			}
+			Arrays.fill(bg_pixels, 0xff000000);
 		}
 
-		/*
 		// rendering the segmentations. each segmentation is rendered in a different image.
-		for (String seg_name : _map_name_to_seg.keySet()) {
-			// here should be the code for displaying the segmentation data
-			// (exercise 3)
-
-			BufferedImage seg_img = _map_seg_name_to_img.get(seg_name);
-			int[] seg_pixels = ((DataBufferInt)seg_img.getRaster().getDataBuffer()).getData();
-
-			// to drawn a segmentation image, fill the pixel array seg_pixels
-			// with ARGB values similar to exercise 2
-		}
-		*/
-
-		for (String seg_name : _map_seg_name_to_img.keySet()) {
-			BufferedImage seg_img = _map_seg_name_to_img.get(seg_name);
-//			int[] seg_pixels = ((DataBufferInt) seg_img.getRaster().getDataBuffer()).getData();
-
-			Segment seg = _slices.getSegment(seg_name);
+		for (Map.Entry<String, Segment> entry : r._segs.entrySet()) {
+			BufferedImage seg_img = _image_pool.acquire(w, h);
+			frame._seg_imgs.put(entry.getKey(), seg_img);
+			int[] seg_pixels = ((DataBufferInt) seg_img.getRaster().getDataBuffer()).getData();
+
+			Segment seg = entry.getValue();
+			if (r._mode != ViewMode.TRANSVERSAL) {
+				// all layers are needed, compute those of a lazy segment in parallel
+				seg.materialize();
+			}
 			int alpha = 128;
-
-			if(_view_mode == ViewMode.TRANSVERSAL){
-				int z = _slices.getActiveImageID();
-				for (int y = 0; y < _w; y++) {
-					for (int x = 0; x < _h; x++) {
-						boolean is_in_mask = seg.is_in_mask(x,y,z);
-						if( is_in_mask){
-							int color = (alpha<<24) + (0x00ffffff & seg.getColor());
-							seg_img.setRGB(x, y, color);
-						}
-						else{
-							seg_img.setRGB(x, y, 0x00000000);
-						}
+			int color = (alpha<<24) + (0x00ffffff & seg.getColor());
+
+			if(r._mode == ViewMode.TRANSVERSAL){
+				// the bitmask has the layout of the image, expand it word by word
+				seg.getMask(r._active).expand(seg_pixels, color, 0x00000000);
+			} else if (r._mode == ViewMode.SAGITTAL) {
+				int x = r._active;
+				for (int z = 0; z < h; z++){
+					int row = z * w;
+					int[] box = seg.get_layer_bounding_box(z);
+					if (box == null || x < box[0] || x > box[2]) {
+						Arrays.fill(seg_pixels, row, row + w, 0x00000000);
+						continue;
 					}
-				}
-			} else if (_view_mode == ViewMode.SAGITTAL) {
-				int x = _slices.getActiveImageID();
-				for (int y = 0; y < _w; y++){
-					for (int z = 0; z < _h; z++){
-						boolean is_in_mask = seg.is_in_mask(x,y,z);
-						if( is_in_mask){
-							int color = (alpha<<24) + (0x00ffffff & seg.getColor());
-							seg_img.setRGB(y, z, color);
-						}
-						else{
-							seg_img.setRGB(y, z, 0x00000000);
-						}
+					BitMask mask = seg.getMask(z);
+					for (int y = 0; y < w; y++){
+						seg_pixels[row + y] = mask.get(x, y) ? color : 0x00000000;
 					}
 				}
-
-			} else if (_view_mode == ViewMode.FRONTAL){
-				int y = _slices.getActiveImageID();
-
-				//iterate over pixel values
-				for (int x = 0; x < _w; x++){
-					for (int z = 0; z < _h; z++){
-						boolean is_in_mask = seg.is_in_mask(x,y,z);
-						if( is_in_mask){
-							int color = (alpha<<24) + (0x00ffffff & seg.getColor());
-							seg_img.setRGB(x, z, color);
-						}
-						else{
-							seg_img.setRGB(x, z, 0x00000000);
-						}
+			} else if (r._mode == ViewMode.FRONTAL){
+				int y = r._active;
+				for (int z = 0; z < h; z++){
+					int row = z * w;
+					int[] box = seg.get_layer_bounding_box(z);
+					if (box == null || y < box[1] || y > box[3]) {
+						Arrays.fill(seg_pixels, row, row + w, 0x00000000);
+						continue;
+					}
+					BitMask mask = seg.getMask(z);
+					for (int x = 0; x < w; x++){
+						seg_pixels[row + x] = mask.get(x, y) ? color : 0x00000000;
 					}
 				}
 			}
 		}
 
-
-		repaint();
+		return frame;
 	}
 	
 
@@ -445,27 +496,6 @@ public class Viewport2d extends Viewport implements MyObserver {
 
 	}
 
-	/**
-	 * Toggles if a segmentation is shown or not.
-	 */
-	public boolean toggleSeg(Segment seg) {
-		String name = seg.getName();
-		boolean gotcha = _map_name_to_seg.containsKey(name);
-		
-		if (!gotcha) {
-			// if a segmentation is shown, we need to allocate memory for pixels
-			BufferedImage seg_img = new BufferedImage(_w, _h, BufferedImage.TYPE_INT_ARGB);
-			_map_seg_name_to_img.put(name, seg_img);
-		} else {
-			_map_seg_name_to_img.remove(name);
-		}
-		
-		// most of the buerocracy is done by the parent viewport class
-		super.toggleSeg(seg);
-		
-		return gotcha;
-	}
-	
 	/**
 	 * Sets the view mode (transversal, sagittal, frontal).
 	 * This method will be implemented in exercise 2.
@@ -2,9 +2,10 @@ package main;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import misc.*;
 import org.jogamp.java3d.*;
@@ -25,11 +26,50 @@ public class Viewport3d extends Viewport implements MyObserver  {
 	private static final long serialVersionUID = 1L;
 	private int _point_distance = 1;
 	private int _step_size = 1;
+	private int _iso_value = 0;
+	private int _loaded_images = 0;	// the images of the current series loaded so far
 
 	public boolean show_ortho_slices = false;
 	public boolean show_volume_render = false;
 	public boolean show_point_cloud = false;
 	public boolean show_marching_cube = false;
+	public boolean parallel_marching_cube = true;
+	public boolean show_iso_surface = false;
+
+	/**
+	 * Private class: the iso-surface the extraction thread is asked for, taken
+	 * from the viewport state in the EDT.
+	 */
+	private static class IsoRequest {
+		final int _generation;
+		final Volume _volume;
+		final int _w, _h, _d;
+		final int _iso_value, _step_size;
+		final boolean _parallel;
+
+		IsoRequest(int generation, Volume volume, int w, int h, int d, int iso_value, int step_size,
+				boolean parallel) {
+			_generation = generation;
+			_volume = volume;
+			_w = w;
+			_h = h;
+			_d = d;
+			_iso_value = iso_value;
+			_step_size = step_size;
+			_parallel = parallel;
+		}
+
+		boolean same_surface(IsoRequest other) {
+			return other != null && _volume == other._volume && _iso_value == other._iso_value
+					&& _step_size == other._step_size;
+		}
+	}
+
+	private AtomicReference<IsoRequest> _pending_iso = new AtomicReference<IsoRequest>();
+	private ExecutorService _iso_extractor;
+	private int _iso_generation = 0;	// bumped in the EDT whenever the iso slot is replaced
+	private IsoRequest _last_iso;		// the request _last_iso_mesh was extracted for, extraction thread only
+	private TriangleMesh _last_iso_mesh;
 
 	public int get_point_distance() {
 		return _point_distance;
@@ -47,6 +87,14 @@ public class Viewport3d extends Viewport implements MyObserver  {
 		this._step_size = step_size;
 	}
 
+	public int get_iso_value(){
+		return _iso_value;
+	}
+
+	public void set_iso_value(int iso_value){
+		this._iso_value = iso_value;
+	}
+
 	/**
 	 * Private class, implementing the GUI element for displaying the 3d data.
 	 */
@@ -99,6 +147,7 @@ public class Viewport3d extends Viewport implements MyObserver  {
 			update_ortho_slices();
 			update_volume_rendering();
 			update_mc_rendering();
+			update_iso_rendering();
 
 			BoundingSphere bigBounds = new BoundingSphere(new Point3d(),1000);
 			OrbitBehavior orbit = new OrbitBehavior(this, OrbitBehavior.REVERSE_ROTATE);
@@ -153,21 +202,23 @@ public class Viewport3d extends Viewport implements MyObserver  {
 	}
 
 	public Shape3D create_segment_point_cloud(Segment segment){
-		double x = _slices.getImageWidth();
-		double y = _slices.getImageHeight();
-		double z = _slices.getNumberOfImages();
-		int num_points = (int) (x * y * z);
+		segment.materialize();
+		int num_points = (int) Math.max(1, segment.cardinality());
 		PointArray arr = new PointArray(num_points, PointArray.COORDINATES);
 		int idx = 0;
-		for(int i = 0; i < x; i++){
-			for(int j = 0; j < y; j++){
-				for(int k = 0; k < z; k++){
-					if (k % _point_distance == 0 && j % _point_distance == 0 && i % _point_distance == 0){
-						if(segment.is_in_mask(i, j, k)){
-							Point3d p = new Point3d(i, j, k);
-							arr.setCoordinate(idx, p);
-							idx++;
-						}
+		int d = _point_distance;
+		for(int k = 0; k < _slices.getNumberOfImages(); k += d){
+			// only walk the bounding box of non empty layers
+			int[] box = segment.get_layer_bounding_box(k);
+			if (box == null) {
+				continue;
+			}
+			for(int j = (box[1] + d - 1) / d * d; j <= box[3]; j += d){
+				for(int i = (box[0] + d - 1) / d * d; i <= box[2]; i += d){
+					if(segment.is_in_mask(i, j, k)){
+						Point3d p = new Point3d(i, j, k);
+						arr.setCoordinate(idx, p);
+						idx++;
 					}
 				}
 			}
@@ -308,63 +359,43 @@ public class Viewport3d extends Viewport implements MyObserver  {
 
 
 	public Shape3D create_marching_cube_render(Segment segment){
-		int step_size = _step_size;
-		Map<Point3d, Integer> map = new HashMap<>();
-		ArrayList<Point3d> vertex_list = new ArrayList<Point3d>();
-		ArrayList<Integer> index_list = new ArrayList<Integer>();
-
-
-		for (int x=0; x < _slices.getImageWidth() - step_size; x += step_size){
-			for (int y=0; y < _slices.getImageHeight() - step_size; y += step_size){
-				for (int z=0; z < _slices.getNumberOfImages() - step_size; z += step_size){
-					// get all adjacent voxel
-					boolean[] arr = new boolean[8];
-					arr[0] = segment.is_in_mask(x, y, z);
-					arr[1] = segment.is_in_mask(x+step_size, y, z);
-					arr[2] = segment.is_in_mask(x+step_size, y, z+step_size);
-					arr[3] = segment.is_in_mask(x, y, z+step_size);
-					arr[4] = segment.is_in_mask(x, y+step_size, z);
-					arr[5] = segment.is_in_mask(x+step_size, y+step_size, z);
-					arr[6] = segment.is_in_mask(x+step_size, y+step_size, z+step_size);
-					arr[7] = segment.is_in_mask(x, y+step_size, z+step_size);
-
-					//calculate index in mc-table
-					Cube cube = new Cube(arr);
-					int cube_index = cube.get_index();
-
-					//compute triangle array
-					int[] triangles = LabMed.get_mc().table[cube_index];
-					Point3d[] triangle_points = LabMed.get_mc().get_triangle_coordinates(triangles);
-
-					//scaling and translation
-					Point3d offset = new Point3d(x, y, z);
-					for (int i = 0; i < triangle_points.length; i++){
-						triangle_points[i].scale(step_size);
-						triangle_points[i].add(offset);
-
-						if (!map.containsKey(triangle_points[i])){
-							map.put(triangle_points[i],vertex_list.size());
-							index_list.add(vertex_list.size());
-							vertex_list.add(triangle_points[i]);
-						} else {
-							int vertex_index = map.get(triangle_points[i]);
-							index_list.add(vertex_index);
-						}
+		segment.materialize();
+		MarchingCubeExtractor extractor = new MarchingCubeExtractor(LabMed.get_mc().table,
+				_slices.getImageWidth(), _slices.getImageHeight(), _slices.getNumberOfImages(), _step_size);
+		TriangleMesh mesh = parallel_marching_cube ? extractor.extract_parallel(segment) : extractor.extract(segment);
+		return create_mesh_shape(mesh, segment.getColor());
+	}
 
-					}
-				}
-			}
+	/**
+	 * Creates the iso-surface of the voxel intensities for a request, straight
+	 * from the volume without a segment. Called by the extraction thread, which
+	 * keeps the last mesh so a rebuilt scene does not extract it again.
+	 */
+	private Shape3D create_iso_surface_render(IsoRequest request){
+		if (!request.same_surface(_last_iso)) {
+			_last_iso_mesh = null;
+			MarchingCubeExtractor extractor = new MarchingCubeExtractor(LabMed.get_mc().table,
+					request._w, request._h, request._d, request._step_size);
+			_last_iso_mesh = request._parallel ? extractor.extract_parallel(request._volume, request._iso_value)
+					: extractor.extract(request._volume, request._iso_value);
+			_last_iso = request;
 		}
+		return create_mesh_shape(_last_iso_mesh, 0xc8c8c8);
+	}
 
-		IndexedTriangleArray geometry = new IndexedTriangleArray(vertex_list.size(),
-				IndexedTriangleArray.COORDINATES | IndexedTriangleArray.NORMALS, index_list.size());
-
-		for(int i = 0; i < index_list.size(); i++){
-			geometry.setCoordinateIndex(i, index_list.get(i));
-		}
-		for(int i = 0; i < vertex_list.size(); i++) {
-			geometry.setCoordinate(i, vertex_list.get(i));
+	/**
+	 * Creates the shape of a mesh, or null if the mesh has no triangles, e.g.
+	 * for an empty segment or an iso value no voxel pair crosses.
+	 */
+	private Shape3D create_mesh_shape(TriangleMesh mesh, int rgb){
+		if (mesh.get_index_num() == 0) {
+			return null;
 		}
+		IndexedTriangleArray geometry = new IndexedTriangleArray(mesh.get_vertex_num(),
+				IndexedTriangleArray.COORDINATES | IndexedTriangleArray.NORMALS, mesh.get_index_num());
+		geometry.setCoordinates(0, mesh.get_coordinates());
+		geometry.setCoordinateIndices(0, mesh.get_indices());
+
 		NormalGenerator normalGenerator = new NormalGenerator();
 		GeometryInfo info = new GeometryInfo(geometry);
 		normalGenerator.generateNormals(info);
@@ -373,7 +404,7 @@ public class Viewport3d extends Viewport implements MyObserver  {
 		Appearance app = new Appearance();
 		Material material = new Material();
 //		material.setAmbientColor(new Color3f(0.2f, 0.2f, 0.2f));
-		Color3f color = int_to_color(segment.getColor());
+		Color3f color = int_to_color(rgb);
 		material.setDiffuseColor(new Color3f(color.x, color.y, color.z));
 		material.setSpecularColor(new Color3f(1, 1, 1));
 //		material.setShininess(64);
@@ -395,7 +426,10 @@ public class Viewport3d extends Viewport implements MyObserver  {
 		bg.setCapability(BranchGroup.ALLOW_CHILDREN_WRITE);
 		if (_map_name_to_seg.size() != 0 && show_marching_cube) {
 			for (Segment s : _map_name_to_seg.values()) {
-				bg.addChild(create_marching_cube_render(s));
+				Shape3D shape = create_marching_cube_render(s);
+				if (shape != null) {
+					bg.addChild(shape);
+				}
 			}
 		}
 
@@ -406,6 +440,68 @@ public class Viewport3d extends Viewport implements MyObserver  {
 		}
 	}
 
+	/**
+	 * Replaces the iso-surface in the scene. The slot is emptied right away and
+	 * the surface is extracted by the extraction thread, which hands it back to
+	 * the EDT; requests coming in while it is busy are coalesced, only the latest
+	 * one is extracted. While a series is still loading the slot stays empty, the
+	 * surface is extracted once the last image is in.
+	 */
+	public void update_iso_rendering(){
+		set_iso_slot(new BranchGroup());
+		final int generation = ++_iso_generation;
+
+		if (!show_iso_surface || _loaded_images != _slices.getNumberOfImages()) {
+			return;
+		}
+
+		IsoRequest request = new IsoRequest(generation, _slices.get_volume(), _slices.getImageWidth(),
+				_slices.getImageHeight(), _slices.getNumberOfImages(), _iso_value, _step_size, parallel_marching_cube);
+
+		if (_pending_iso.getAndSet(request) == null) {
+			_iso_extractor.execute(new Runnable() {
+				public void run() {
+					final IsoRequest latest = _pending_iso.getAndSet(null);
+					if (latest == null) {
+						return;
+					}
+					try {
+						final BranchGroup bg = new BranchGroup();
+						Shape3D shape = create_iso_surface_render(latest);
+						if (shape != null) {
+							bg.addChild(shape);
+						}
+						EventQueue.invokeLater(new Runnable() {
+							public void run() {
+								// a newer request or scene has replaced the slot meanwhile
+								if (latest._generation == _iso_generation) {
+									set_iso_slot(bg);
+								}
+							}
+						});
+					} catch (RuntimeException ex) {
+						System.out.println(Viewport3d.this.getClass()+"::update_iso_rendering -> extraction failed: "+ex);
+					}
+				}
+			});
+		}
+	}
+
+	private void set_iso_slot(BranchGroup bg) {
+		if (_panel3d._scene == null || _panel3d._scene.numChildren() == 0) {
+			return;
+		}
+		TransformGroup tg = (TransformGroup) _panel3d._scene.getChild(0);
+		bg.setCapability(BranchGroup.ALLOW_DETACH);
+		bg.setCapability(BranchGroup.ALLOW_CHILDREN_WRITE);
+
+		if (tg.numChildren() == 4){
+			tg.insertChild(bg, 4);
+		} else {
+			tg.setChild(bg, 4);
+		}
+	}
+
 	private Panel3d _panel3d;
 
 	/**
@@ -417,6 +513,13 @@ public class Viewport3d extends Viewport implements MyObserver  {
 		
 		this.setPreferredSize(new Dimension(DEF_WIDTH,DEF_HEIGHT));
 		this.setLayout( new BorderLayout() );
+		_iso_extractor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Viewport3d iso extractor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 		GraphicsConfiguration config = SimpleUniverse.getPreferredConfiguration();
 		_panel3d = new Panel3d( config );		
         this.add(_panel3d, BorderLayout.CENTER );        
@@ -460,7 +563,15 @@ public class Viewport3d extends Viewport implements MyObserver  {
 			update_ortho_slices();
 		}
 
+		if (msg._type == Message.M_CLEAR) {
+			_loaded_images = 0;
+		}
+
 		if (msg._type == Message.M_NEW_IMAGE_LOADED) {
+			if (_loaded_images++ == 0) {
+				// the default iso value is set once per series, not per image
+				_iso_value = _slices.get_max_val() / 2;
+			}
 			update_view();
 		}
 	}
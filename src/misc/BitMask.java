@@ -1,70 +1,646 @@
 package misc;
 
+import java.util.Arrays;
+
 /**
  * A two dimensional BitMask class (used for segmentations), optimized
  * for speed & low mem usage.
- * 
+ *
+ * The bit pixels (index x + y * width) are split into chunks of CHUNK_BITS,
+ * each stored in the form fitting its density: an empty chunk takes no memory,
+ * a chunk with at most ARRAY_MAX set bits is a sorted array of their positions
+ * and a denser chunk is a plain bitmap. Bulk operations pick the form of every
+ * chunk they write. Single bit changes turn an array into a bitmap when it
+ * grows beyond ARRAY_MAX and a bitmap back into an array when it thins out to
+ * ARRAY_MAX / 2 bits, so a chunk does not switch back and forth at the limit.
+ *
+ * The number of set bits is kept up to date by every operation, and so is the
+ * bounding box of the set bits as long as bits are only added. Other changes
+ * mark the box as unknown, it is then recomputed from the chunks when asked.
+ * A BitMask is not thread safe: get_bounding_box writes the box, so it must
+ * not run at the same time as a change. Segment guards each of its layers by
+ * the lock of the mask.
+ *
  * @author Karl-Ingo Friese
  */
 public class BitMask {
-	private long[] _data;
+	public static final int CHUNK_BITS = 1<<16;
+	public static final int ARRAY_MAX = 4096;
+	private static final int CHUNK_WORDS = CHUNK_BITS>>6;
+
+	// per thread scratch bitmaps for building chunks
+	private static final ThreadLocal<long[][]> SCRATCH = new ThreadLocal<long[][]>() {
+		protected long[][] initialValue() {
+			return new long[3][CHUNK_WORDS];
+		}
+	};
+
+	private Object[] _chunks;	// per chunk: null (empty), long[CHUNK_WORDS] or ArrayChunk
 	private int _w;
 	private int _h;
+	private int _count;			// the number of set bits
+	private int[] _chunk_counts;	// the number of set bits per chunk
+	private int[] _box = new int[4];	// x0, y0, x1, y1 of the set bits (inclusive), x0 > x1 if there are none
+	private boolean _box_valid;	// false if _box has to be recomputed
+
+	/**
+	 * A sparse chunk: the sorted positions of its set bits.
+	 */
+	private static class ArrayChunk {
+		char[] _values;
+		int _size;
+
+		ArrayChunk(int capacity) {
+			_values = new char[capacity];
+		}
+
+		/**
+		 * Returns the position of a value, or -(insertion point)-1.
+		 */
+		int find(int value) {
+			char[] values = _values;
+			return Arrays.binarySearch(values, 0, Math.min(_size, values.length), (char) value);
+		}
+	}
 
 	/**
 	 * Default Constructor with width and height.
-	 * 
+	 *
 	 * @param w	width
 	 * @param h	heigth
 	 */
 	public BitMask(int w, int h) {
 		_w = w;
 		_h = h;
-		_data = new long[((w*h)/64)+1];
+		_chunks = new Object[(w*h + CHUNK_BITS-1) / CHUNK_BITS];
+		_chunk_counts = new int[_chunks.length];
 		clear();
 	}
 
 	/**
 	 * Sets or unsets a bit pixel.
-	 *  
+	 *
 	 * @param x		the horizontal position
 	 * @param y		the vertical position
 	 * @param value	the bit pixel value (true or false)
 	 */
 	public void set(int x, int y, boolean value) {
-		int longnum = (x+y*_w)>>6;
-		int bitnum = (x+y*_w)%64;
+		set(x+y*_w, value);
+	}
+
+
+	/**
+	 * Sets or unsets a bit pixel given by its index.
+	 *
+	 * @param i		the pixel index, x + y * width
+	 * @param value	the bit pixel value (true or false)
+	 */
+	public void set(int i, boolean value) {
+		int c = i>>>16;
+		int bit = i & 0xffff;
+		Object chunk = _chunks[c];
+
+		if (chunk instanceof long[]) {
+			long[] words = (long[]) chunk;
+			long mask = 1L<<bit;
+			if (((words[bit>>6] & mask) != 0) == value) {
+				return;
+			}
+			words[bit>>6] ^= mask;
+		} else if (chunk instanceof ArrayChunk) {
+			ArrayChunk array = (ArrayChunk) chunk;
+			int pos = array.find(bit);
+			if (value && pos < 0) {
+				insert(c, array, -pos-1, bit);
+			} else if (!value && pos >= 0) {
+				System.arraycopy(array._values, pos+1, array._values, pos, array._size-pos-1);
+				if (--array._size == 0) {
+					_chunks[c] = null;
+				}
+			} else {
+				return;
+			}
+		} else if (value) {
+			ArrayChunk array = new ArrayChunk(4);
+			array._values[0] = (char) bit;
+			array._size = 1;
+			_chunks[c] = array;
+		} else {
+			return;
+		}
 
+		// bit i was changed
+		int x = i%_w, y = i/_w;
 		if (value) {
-			_data[longnum] |= ((long)(1))<<bitnum;
+			_count++;
+			_chunk_counts[c]++;
+			if (_box_valid) {
+				_box[0] = Math.min(_box[0], x);
+				_box[1] = Math.min(_box[1], y);
+				_box[2] = Math.max(_box[2], x);
+				_box[3] = Math.max(_box[3], y);
+			}
 		} else {
-			_data[longnum] &= ~(((long)(1))<<bitnum);
+			_count--;
+			if (--_chunk_counts[c] <= ARRAY_MAX/2 && chunk instanceof long[]) {
+				put(c, (long[]) chunk, _chunk_counts[c]);
+			}
+			if (x == _box[0] || y == _box[1] || x == _box[2] || y == _box[3]) {
+				_box_valid = false;
+			}
+		}
+	}
+
+
+	/**
+	 * Inserts a bit into an array chunk, which becomes a bitmap once it holds
+	 * more than ARRAY_MAX bits.
+	 */
+	private void insert(int c, ArrayChunk array, int pos, int bit) {
+		if (array._size == ARRAY_MAX) {
+			long[] words = new long[CHUNK_WORDS];
+			for (int k=0; k<array._size; k++) {
+				words[array._values[k]>>6] |= 1L<<array._values[k];
+			}
+			words[bit>>6] |= 1L<<bit;
+			_chunks[c] = words;
+			return;
 		}
+
+		char[] values = array._values;
+		if (array._size == values.length) {
+			values = Arrays.copyOf(values, Math.min(ARRAY_MAX, values.length*2));
+		}
+		System.arraycopy(values, pos, values, pos+1, array._size-pos);
+		values[pos] = (char) bit;
+		array._values = values;
+		array._size++;
 	}
 
 
 	/**
-	 * Returns true if a bit pixel is set. 
-	 * 
+	 * Returns true if a bit pixel is set.
+	 *
 	 * @param x		the horizontal position
 	 * @param y		the vertical position
 	 * @return		true if the bit pixel is set, false if it isnt.
 	 */
 	public boolean get(int x, int y) {
-		int longnum = (x+y*_w)>>6;
-		int bitnum = (x+y*_w)%64;
+		int i = x+y*_w;
+		Object chunk = _chunks[i>>>16];
+
+		if (chunk instanceof long[]) {
+			return (((long[]) chunk)[(i & 0xffff)>>6] & 1L<<i) != 0;
+		} else if (chunk instanceof ArrayChunk) {
+			return ((ArrayChunk) chunk).find(i & 0xffff) >= 0;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Sets every bit pixel whose intensity lies in [min, max] and unsets all
+	 * others. The intensities are read in the layout of the bitmask (index
+	 * x + y * width) and each 64 bit word is assembled without branches and
+	 * stored once, instead of a read-modify-write per bit.
+	 *
+	 * @param voxels	the intensities, at least width * height values
+	 * @param min		the lower bound (inclusive)
+	 * @param max		the upper bound (inclusive)
+	 */
+	public void threshold(char[] voxels, int min, int max) {
+		int n = _w*_h;
+		long[] words = SCRATCH.get()[0];
+		for (int c=0; c<_chunks.length; c++) {
+			int base = c*CHUNK_BITS;
+			int bits = Math.min(CHUNK_BITS, n-base);
+			int full = bits>>6;
+			for (int i=0; i<full; i++) {
+				int start = base + (i<<6);
+				long word = 0;
+				for (int j=0; j<64; j++) {
+					int v = voxels[start+j];
+					// the sign bit of (v-min)|(max-v) is set iff v is outside [min, max]
+					word |= (long)(~((v-min) | (max-v)) >>> 31) << j;
+				}
+				words[i] = word;
+			}
+
+			Arrays.fill(words, full, CHUNK_WORDS, 0);
+			for (int j=full<<6; j<bits; j++) {
+				int v = voxels[base+j];
+				words[full] |= (long)(~((v-min) | (max-v)) >>> 31) << j;
+			}
+			store(c, words);
+		}
+	}
+
+
+	/**
+	 * Expands the bitmask into an image, one ARGB pixel per bit pixel (index
+	 * x + y * width). Runs of 64 equal bits are written with a single fill.
+	 *
+	 * @param pixels		the target pixels, at least width * height ints
+	 * @param set_argb		the pixel value of set bits
+	 * @param unset_argb	the pixel value of unset bits
+	 */
+	public void expand(int[] pixels, int set_argb, int unset_argb) {
+		int n = _w*_h;
+		for (int c=0; c<_chunks.length; c++) {
+			int base = c*CHUNK_BITS;
+			int end_chunk = Math.min(base+CHUNK_BITS, n);
+			Object chunk = _chunks[c];
+
+			if (chunk instanceof long[]) {
+				long[] words = (long[]) chunk;
+				for (int i=0; base+(i<<6)<end_chunk; i++) {
+					int start = base+(i<<6);
+					int end = Math.min(start+64, end_chunk);
+					long word = words[i];
+					if (word == 0) {
+						Arrays.fill(pixels, start, end, unset_argb);
+					} else if (word == -1L) {
+						Arrays.fill(pixels, start, end, set_argb);
+					} else {
+						for (int j=start; j<end; j++, word>>>=1) {
+							pixels[j] = (word & 1) != 0 ? set_argb : unset_argb;
+						}
+					}
+				}
+			} else {
+				Arrays.fill(pixels, base, end_chunk, unset_argb);
+				if (chunk instanceof ArrayChunk) {
+					ArrayChunk array = (ArrayChunk) chunk;
+					char[] values = array._values;
+					int size = Math.min(array._size, values.length);
+					for (int k=0; k<size; k++) {
+						pixels[base+values[k]] = set_argb;
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Sets every bit pixel that is set in this and in other.
+	 *
+	 * @param other	a bitmask of the same size
+	 */
+	public void and(BitMask other) {
+		long[][] scratch = SCRATCH.get();
+		for (int c=0; c<_chunks.length; c++) {
+			if (_chunks[c] == null) continue;
+			if (other._chunks[c] == null) {
+				drop(c);
+				continue;
+			}
+			long[] a = words(c, scratch[0]), b = other.words(c, scratch[1]), r = scratch[2];
+			for (int i=0; i<CHUNK_WORDS; i++) {
+				r[i] = a[i] & b[i];
+			}
+			store(c, r);
+		}
+	}
+
+
+	/**
+	 * Sets every bit pixel that is set in this or in other.
+	 *
+	 * @param other	a bitmask of the same size
+	 */
+	public void or(BitMask other) {
+		long[][] scratch = SCRATCH.get();
+		for (int c=0; c<_chunks.length; c++) {
+			if (other._chunks[c] == null) continue;
+			long[] a = words(c, scratch[0]), b = other.words(c, scratch[1]), r = scratch[2];
+			for (int i=0; i<CHUNK_WORDS; i++) {
+				r[i] = a[i] | b[i];
+			}
+			store(c, r);
+		}
+	}
+
+
+	/**
+	 * Sets every bit pixel that is set in either this or other, but not in both.
+	 *
+	 * @param other	a bitmask of the same size
+	 */
+	public void xor(BitMask other) {
+		long[][] scratch = SCRATCH.get();
+		for (int c=0; c<_chunks.length; c++) {
+			if (other._chunks[c] == null) continue;
+			long[] a = words(c, scratch[0]), b = other.words(c, scratch[1]), r = scratch[2];
+			for (int i=0; i<CHUNK_WORDS; i++) {
+				r[i] = a[i] ^ b[i];
+			}
+			store(c, r);
+		}
+	}
 
-		return (_data[longnum] & ((long)(1))<<bitnum) != 0;
+
+	/**
+	 * Unsets every bit pixel that is set in other.
+	 *
+	 * @param other	a bitmask of the same size
+	 */
+	public void andNot(BitMask other) {
+		long[][] scratch = SCRATCH.get();
+		for (int c=0; c<_chunks.length; c++) {
+			if (_chunks[c] == null || other._chunks[c] == null) continue;
+			long[] a = words(c, scratch[0]), b = other.words(c, scratch[1]), r = scratch[2];
+			for (int i=0; i<CHUNK_WORDS; i++) {
+				r[i] = a[i] & ~b[i];
+			}
+			store(c, r);
+		}
 	}
 
 
 	/**
-	 * Converts the bitmask into a string (useful for debugging). 
+	 * Inverts every bit pixel. The bits after the last bit pixel stay unset.
+	 */
+	public void invert() {
+		long[][] scratch = SCRATCH.get();
+		for (int c=0; c<_chunks.length; c++) {
+			long[] a = words(c, scratch[0]), r = scratch[2];
+			for (int i=0; i<CHUNK_WORDS; i++) {
+				r[i] = ~a[i];
+			}
+			clear_tail(c, r);
+			store(c, r);
+		}
+	}
+
+
+	/**
+	 * Returns the number of set bit pixels.
+	 *
+	 * @return	the population count
+	 */
+	public int cardinality() {
+		return _count;
+	}
+
+
+	/**
+	 * Returns true if no bit pixel is set.
+	 *
+	 * @return	true if the bitmask is empty
+	 */
+	public boolean is_empty() {
+		return _count == 0;
+	}
+
+
+	/**
+	 * Returns the bounding box of the set bit pixels. It is only recomputed
+	 * after bits on its border were unset or after bulk operations.
+	 *
+	 * @return	{x0, y0, x1, y1}, all inclusive, or null if no bit pixel is set
+	 */
+	public int[] get_bounding_box() {
+		if (!_box_valid) {
+			compute_box();
+		}
+		return _count == 0 ? null : _box.clone();
+	}
+
+
+	private void compute_box() {
+		_box[0] = _box[1] = Integer.MAX_VALUE;
+		_box[2] = _box[3] = -1;
+		for (int c=0; c<_chunks.length; c++) {
+			int base = c*CHUNK_BITS;
+			Object chunk = _chunks[c];
+
+			if (chunk instanceof long[]) {
+				long[] words = (long[]) chunk;
+				for (int i=0; i<CHUNK_WORDS; i++) {
+					long word = words[i];
+					if (word == 0) continue;
+					int start = base + (i<<6);
+					int first = start + Long.numberOfTrailingZeros(word);
+					int last = start + 63 - Long.numberOfLeadingZeros(word);
+					if (first/_w == last/_w) {
+						include(first);
+						include(last);
+					} else {
+						// the word spans rows
+						while (word != 0) {
+							include(start + Long.numberOfTrailingZeros(word));
+							word &= word-1;
+						}
+					}
+				}
+			} else if (chunk instanceof ArrayChunk) {
+				ArrayChunk array = (ArrayChunk) chunk;
+				for (int k=0; k<array._size; k++) {
+					include(base + array._values[k]);
+				}
+			}
+		}
+		_box_valid = true;
+	}
+
+
+	private void include(int i) {
+		int x = i%_w, y = i/_w;
+		_box[0] = Math.min(_box[0], x);
+		_box[1] = Math.min(_box[1], y);
+		_box[2] = Math.max(_box[2], x);
+		_box[3] = Math.max(_box[3], y);
+	}
+
+
+	/**
+	 * Returns the index (x + y * width) of the first set bit pixel at or after
+	 * an index. Empty chunks are skipped as a whole and array chunks are read
+	 * entry by entry, so iterating a sparse bitmask is cheap.
+	 *
+	 * @param from	the index to start at
+	 * @return		the index of the next set bit pixel, -1 if there is none
+	 */
+	public int nextSetBit(int from) {
+		if (from < 0) from = 0;
+		for (int c=from>>>16; c<_chunks.length; c++) {
+			int base = c*CHUNK_BITS;
+			int bit = Math.max(0, from-base);
+			Object chunk = _chunks[c];
+
+			if (chunk instanceof long[]) {
+				long[] words = (long[]) chunk;
+				int i = bit>>6;
+				long word = words[i] & (-1L << bit);
+				while (true) {
+					if (word != 0) {
+						return base + (i<<6) + Long.numberOfTrailingZeros(word);
+					}
+					if (++i == CHUNK_WORDS) break;
+					word = words[i];
+				}
+			} else if (chunk instanceof ArrayChunk) {
+				ArrayChunk array = (ArrayChunk) chunk;
+				int pos = array.find(bit);
+				if (pos < 0) pos = -pos-1;
+				if (pos < Math.min(array._size, array._values.length)) {
+					return base + array._values[pos];
+				}
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Sets or unsets the bit pixels with the indices [from, to), whole words
+	 * at a time.
+	 *
+	 * @param from	the first index (x + y * width)
+	 * @param to	the index after the last one
+	 * @param value	the bit pixel value (true or false)
+	 */
+	public void set_range(int from, int to, boolean value) {
+		if (from >= to) return;
+		long[][] scratch = SCRATCH.get();
+		for (int c=from>>>16; c<=(to-1)>>>16; c++) {
+			int base = c*CHUNK_BITS;
+			int lo = Math.max(from, base) - base;
+			int hi = Math.min(to, base+CHUNK_BITS) - base;
+			long[] r = scratch[2];
+
+			if (lo == 0 && hi == CHUNK_BITS) {
+				if (value) {
+					Arrays.fill(r, -1L);
+					store(c, r);
+				} else {
+					drop(c);
+				}
+				continue;
+			}
+
+			System.arraycopy(words(c, scratch[0]), 0, r, 0, CHUNK_WORDS);
+			int first = lo>>6, last = (hi-1)>>6;
+			long first_mask = -1L << lo;
+			long last_mask = -1L >>> -hi;
+			if (first == last) {
+				apply(r, first, first_mask & last_mask, value);
+			} else {
+				apply(r, first, first_mask, value);
+				Arrays.fill(r, first+1, last, value ? -1L : 0L);
+				apply(r, last, last_mask, value);
+			}
+			store(c, r);
+		}
+	}
+
+
+	private static void apply(long[] words, int i, long mask, boolean value) {
+		if (value) {
+			words[i] |= mask;
+		} else {
+			words[i] &= ~mask;
+		}
+	}
+
+
+	/**
+	 * Returns the bits of chunk c as a bitmap: the chunk itself if it is one,
+	 * otherwise buf filled with its bits.
+	 */
+	private long[] words(int c, long[] buf) {
+		Object chunk = _chunks[c];
+		if (chunk instanceof long[]) {
+			return (long[]) chunk;
+		}
+
+		Arrays.fill(buf, 0);
+		if (chunk instanceof ArrayChunk) {
+			ArrayChunk array = (ArrayChunk) chunk;
+			for (int k=0; k<array._size; k++) {
+				buf[array._values[k]>>6] |= 1L<<array._values[k];
+			}
+		}
+		return buf;
+	}
+
+
+	/**
+	 * Stores a bitmap as chunk c, in the form fitting its density. The words
+	 * are copied, so they may be a scratch buffer.
+	 */
+	private void store(int c, long[] words) {
+		int count = 0;
+		for (int i=0; i<CHUNK_WORDS; i++) {
+			count += Long.bitCount(words[i]);
+		}
+		_count += count - _chunk_counts[c];
+		_chunk_counts[c] = count;
+		_box_valid = false;
+		put(c, words, count);
+	}
+
+
+	/**
+	 * Makes chunk c hold the bits of a bitmap with count set bits, as an array
+	 * if there are at most ARRAY_MAX of them. Only the form of the chunk is
+	 * chosen here, the bookkeeping is left to the caller.
+	 */
+	private void put(int c, long[] words, int count) {
+		if (count == 0) {
+			_chunks[c] = null;
+		} else if (count <= ARRAY_MAX) {
+			ArrayChunk array = new ArrayChunk(count);
+			for (int i=0; i<CHUNK_WORDS; i++) {
+				long word = words[i];
+				while (word != 0) {
+					array._values[array._size++] = (char) ((i<<6) + Long.numberOfTrailingZeros(word));
+					word &= word-1;
+				}
+			}
+			_chunks[c] = array;
+		} else if (_chunks[c] instanceof long[]) {
+			System.arraycopy(words, 0, (long[]) _chunks[c], 0, CHUNK_WORDS);
+		} else {
+			_chunks[c] = words.clone();
+		}
+	}
+
+
+	/**
+	 * Unsets all bits of chunk c.
+	 */
+	private void drop(int c) {
+		_count -= _chunk_counts[c];
+		_chunk_counts[c] = 0;
+		_chunks[c] = null;
+		_box_valid = false;
+	}
+
+
+	/**
+	 * Unsets the bits of chunk c after the last bit pixel.
+	 */
+	private void clear_tail(int c, long[] words) {
+		int bits = _w*_h - c*CHUNK_BITS;
+		if (bits >= CHUNK_BITS) return;
+
+		int full = bits>>6;
+		if ((bits & 63) != 0) {
+			words[full++] &= -1L >>> -bits;
+		}
+		Arrays.fill(words, full, CHUNK_WORDS, 0);
+	}
+
+
+	/**
+	 * Converts the bitmask into a string (useful for debugging).
 	 * @return		a human readable string representation. might not be human readable
 	 *              for very large bitmasks.
 	 */
 	public String toString() {
-		StringBuffer str = new StringBuffer(_data.length+_h);
+		StringBuffer str = new StringBuffer(_w*_h+_h);
 
 		for (int i=0; i<_h; i++) {
 			for (int j=0; j<_w; j++) {
@@ -72,7 +648,7 @@ public class BitMask {
 			}
 			str.append("\n");
 		}
-		
+
 		return str.toString();
 	}
 
@@ -81,8 +657,13 @@ public class BitMask {
 	 * Unsets every bit in the BitMask.
 	 */
 	public void clear() {
-		for (int i=0; i<_data.length; i++) {
-			_data[i] = 0;
+		for (int i=0; i<_chunks.length; i++) {
+			_chunks[i] = null;
 		}
+		Arrays.fill(_chunk_counts, 0);
+		_count = 0;
+		_box[0] = _box[1] = Integer.MAX_VALUE;
+		_box[2] = _box[3] = -1;
+		_box_valid = true;
 	}
 }
@@ -1,6 +1,7 @@
 package misc;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Implements the internal representation of a DICOM Data Element.
@@ -13,6 +14,7 @@ public class DiDataElement {
 	private int _vl;
 	private int _vr;
 	private byte[] _values;
+	private ByteBuffer _value_buffer; // view of the pixel data in the mapped file, see readNext
 
 	/**
 	 * Default constructor; creates an empty element.
@@ -23,6 +25,7 @@ public class DiDataElement {
 		_vl = 0;
 		_vr = 0;
 		_values = null;
+		_value_buffer = null;
 	}
 
 	/**
@@ -60,11 +63,18 @@ public class DiDataElement {
 			_vl = is.getInt();
 		}
 
-		byte[] values = new byte[_vl];
-
-		is.read(values);
-		_values = values;
 		int tag = getTag();
+		if (tag == 0x7FE00010) {
+			// the pixel data is not copied, it stays a view of the (mapped) file
+			_values = null;
+			_value_buffer = is.slice(_vl);
+		} else {
+			byte[] values = new byte[_vl];
+
+			is.read(values);
+			_values = values;
+			_value_buffer = null;
+		}
 		if(tag == 0x00020010){
 			String value = getValueAsString();
 			if(value.equals("1.2.840.10008.1.2")){
@@ -143,11 +153,16 @@ public class DiDataElement {
 	}
 
 	/**
-	 * Allows access to the byte value array.
+	 * Allows access to the byte value array. For the pixel data element the
+	 * array is copied out of its value buffer on the first call.
 	 * 
 	 * @return the byte value array containing the element data
 	 */
 	public byte[] getValues() {
+		if (_values == null && _value_buffer != null) {
+			_values = new byte[_value_buffer.remaining()];
+			_value_buffer.duplicate().get(_values);
+		}
 		return _values;
 	}
 
@@ -157,6 +172,33 @@ public class DiDataElement {
 	 */
 	public void setValues(byte[] values) {
 		this._values = values;
+		this._value_buffer = null;
+	}
+
+	/**
+	 * Returns the element data as a read-only buffer without copying it. For the
+	 * pixel data element this is a view of the mapped DICOM file.
+	 * 
+	 * @return a buffer positioned at the first value byte, or null if the
+	 *         values were released
+	 */
+	public ByteBuffer getValueBuffer() {
+		if (_value_buffer != null) {
+			return _value_buffer.duplicate().order(_value_buffer.order());
+		}
+		if (_values != null) {
+			return ByteBuffer.wrap(_values).asReadOnlyBuffer();
+		}
+		return null;
+	}
+
+	/**
+	 * Drops the element data (but keeps tag, VR and VL). Used for the pixel
+	 * data once it has been decoded, so the mapped file can be released.
+	 */
+	public void releaseValues() {
+		_values = null;
+		_value_buffer = null;
 	}
 
 	/**
@@ -191,6 +233,8 @@ public class DiDataElement {
 				
 		if (_vl>255) {
 			str = "(too long to be printed)";
+		} else if (getValues()==null) {
+			str = "(released)";
 		} else if (_vr==DiDi.AE || _vr==DiDi.AS || _vr==DiDi.CS || _vr==DiDi.DA || _vr==DiDi.DS ||
 				_vr==DiDi.DT || _vr==DiDi.IS || _vr==DiDi.LO || _vr==DiDi.LT || _vr==DiDi.OF ||
 				_vr==DiDi.PN || _vr==DiDi.SH || _vr==DiDi.ST || _vr==DiDi.TM || _vr==DiDi.UI ||
@@ -1,6 +1,10 @@
 package misc;
 
-import java.awt.image.DataBufferInt;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import misc.DiFileInputStream;
 
@@ -28,7 +32,8 @@ public class DiFile {
 	private int _intercept = 0;
 	private int _high_bit;
 	private String _format;
-	private int[][] _intensity_arr; // width * height
+	private DiDataElement _pixel_element; // holds a view of the pixel data until it is released
+	private long _pixel_offset; // position of the pixel data in the file
 
 	/**
 	 * Default Construtor - creates an empty DicomFile.
@@ -41,7 +46,8 @@ public class DiFile {
 
 	/**
 	 * Initializes the DicomFile from a file. Might throw an exception (unexpected
-	 * end of file, wrong data etc).
+	 * end of file, wrong data, no DICM prefix etc). The file is read exactly once;
+	 * afterwards getImageNumber() returns its image number or -1 if it had none.
 	 * This method will be implemented in exercise 1.
 	 * 
 	 * @param file_name	a string containing the name of a valid dicom file
@@ -50,15 +56,35 @@ public class DiFile {
 	public void initFromFile(String file_name) throws Exception {
 		// exercise 1
 		_file_name = file_name;
+		_image_number = -1;
 		DiFileInputStream is = new DiFileInputStream(file_name);
-		is.skipHeader();
+		try {
+			if (!is.skipHeader()) {
+				throw new Exception(file_name + " is not a DICOM file");
+			}
+			readElements(is);
+		} finally {
+			is.close();
+		}
+	}
 
+	/**
+	 * Reads all data elements up to and including the pixel data from a stream
+	 * positioned behind the DICOM header. The image number (0020,0013) is picked
+	 * up on the way, so the file does not need to be scanned for it beforehand.
+	 *
+	 * @param is	a stream positioned behind the 132 byte header
+	 * @throws Exception
+	 */
+	private void readElements(DiFileInputStream is) throws Exception {
 		while (true) {
 			DiDataElement dde = new DiDataElement();
 			dde.readNext(is);
 			_data_elements.put(dde.getTag(), dde);
 			int tag = dde.getTag();
-			if (tag == 0x00280011) { //columns / width
+			if (tag == 0x00200013) { //image number
+				_image_number = dde.getValueAsInt();
+			} else if (tag == 0x00280011) { //columns / width
 				_w = dde.getValueAsInt();
 			} else if (tag == 0x00280010) { //rows / height
 				_h = dde.getValueAsInt();
@@ -87,70 +113,97 @@ public class DiFile {
 			} else if (tag == 0x00281053) { //slope
 				_slope = dde.getValueAsInt();
 			} else if (tag == 0x7FE00010) { //pixel data, last element
-				//byte data
-				byte[] pixel_bytes = dde.getValues();
+				//byte data, a view of the mapped file
+				ByteBuffer pixel_bytes = dde.getValueBuffer().order(ByteOrder.LITTLE_ENDIAN);
 
 				//sanity check for pixel array length
 				int expected_byte_length = _w * _h * _bits_allocated / 8;
-				if (pixel_bytes.length != expected_byte_length){
+				if (pixel_bytes.remaining() != expected_byte_length){
 					throw new Exception("Expected pixel array to be of length "
-							+ expected_byte_length + ", but got: " + pixel_bytes.length);
+							+ expected_byte_length + ", but got: " + pixel_bytes.remaining());
 				}
 
-				//init array
-				_intensity_arr = new int[_w][_h];
-
-				//integer format
-				int last_important_byte = (int) Math.ceil(_bits_stored / 8.0); //last byte with information, ignore all above
-				int last_important_bit = last_important_byte * 8 - _bits_stored; //last bit with information
-				int highest_last_byte_val = (int) Math.pow(2, last_important_bit) - 1;
-
-				//pixel data constants
-				int byte_per_pixel = _bits_allocated / 8;
-				int num_pixels = _w * _h;
-
-				//iterate over pixel values
-				for (int i = 0; i < num_pixels; i++) {
-					int val = 0;
-					//iterate over bytes per pixel
-					for (int j = 0; j < byte_per_pixel; j++) {
-						//check if byte can be skipped, for given dataset not relevant since all bytes relevant
-						if (j + 1 > last_important_byte) continue;
-
-						byte raw = pixel_bytes[i * byte_per_pixel + j];
-						int unsigned = (int) (raw & 0xff);
-
-						int shifted = unsigned << (j * 8); //accumulate values of all bytes per pixel
-						val += shifted;
-					}
-
-					//compute x and y position
-					int x = i % _w;
-					int y = i / _w;
-
-					//set value
-					_intensity_arr[x][y] = val;
+				if (_bits_allocated > 16) {
+					throw new Exception("Only up to 16 allocated bits are supported, but got: " + _bits_allocated);
 				}
 
+				//decoding is left to decode_pixels, which writes into the volume
+				_pixel_element = dde;
+				_pixel_offset = is.get_location() - pixel_bytes.remaining();
+
 				//pixel data is last element, stop
 				break;
 			}
 		}
 	}
 
-	public int[][] get_intensity_arr(){
-		return _intensity_arr;
-	}
+	/**
+	 * Decodes the little endian pixel data straight from the mapped file into
+	 * the given buffer (usually the slice storage of a Volume, row-major) and
+	 * releases the pixel data afterwards. If it was released before, the pixel
+	 * data is mapped again from its recorded position in the file, so slices
+	 * can be decoded (again) on demand.
+	 *
+	 * @param dst	a buffer with room for width * height voxels
+	 * @throws Exception if the file could not be read
+	 */
+	public void decode_pixels(CharBuffer dst) throws Exception {
+		if (_pixel_element == null) {
+			throw new Exception(_file_name + ": no pixel data");
+		}
+		ByteBuffer pixel_bytes = _pixel_element.getValueBuffer();
+		if (pixel_bytes == null) {
+			RandomAccessFile file = new RandomAccessFile(_file_name, "r");
+			try {
+				pixel_bytes = file.getChannel().map(FileChannel.MapMode.READ_ONLY, _pixel_offset, _pixel_element.getVL());
+			} finally {
+				file.close();
+			}
+		}
+		pixel_bytes.order(ByteOrder.LITTLE_ENDIAN);
+
+		//integer format
+		int last_important_byte = (int) Math.ceil(_bits_stored / 8.0); //last byte with information, ignore all above
+
+		//pixel data constants
+		int byte_per_pixel = _bits_allocated / 8;
+		int num_pixels = _w * _h;
+
+		if (byte_per_pixel == 2 && last_important_byte == 2) {
+			//common case: 16 bit unsigned, a bulk copy
+			dst.put(pixel_bytes.asCharBuffer());
+		} else {
+			//iterate over pixel values
+			for (int i = 0; i < num_pixels; i++) {
+				int val = 0;
+				//iterate over bytes per pixel
+				for (int j = 0; j < byte_per_pixel; j++) {
+					//check if byte can be skipped, for given dataset not relevant since all bytes relevant
+					if (j + 1 > last_important_byte) continue;
+
+					int unsigned = pixel_bytes.get(i * byte_per_pixel + j) & 0xff;
+
+					int shifted = unsigned << (j * 8); //accumulate values of all bytes per pixel
+					val += shifted;
+				}
 
-	public int get_intensity(int x, int y){ // x is width, y is height
-		return _intensity_arr[x][y];
-	}
+				//set value, row-major
+				dst.put(i, (char) val);
+			}
+		}
 
+		//the decoded values are all we keep, release the file
+		release_pixels();
+	}
 
-	public boolean is_in_range(int min, int max, int x, int y){
-		// min, max in [0, 100]
-		int intensity = get_intensity(x, y);
-		return intensity >= min && intensity <= max;
+	/**
+	 * Releases the view of the pixel data kept since initFromFile. Only the
+	 * position of the pixel data in the file is remembered (see decode_pixels).
+	 */
+	public void release_pixels() {
+		if (_pixel_element != null) {
+			_pixel_element.releaseValues();
+		}
 	}
 
 	public int get_max_val(){
@@ -1,18 +1,23 @@
 package misc;
 
 import java.io.*;
-import java.sql.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Represents a byte stream for DICOM files. Extends the default FileReader class.
  * Contains useful functions for handling DICOM files, such as skipHeader or getByte()
  * or the current byte position in the file.
+ * The file is memory mapped through its FileChannel when the stream is opened, so
+ * all reads (including getShort and getInt) are served from the mapped buffer
+ * instead of one system call per byte.
  * 
  * @author Karl-Ingo Friese
  */
 public class DiFileInputStream extends FileInputStream {
-	private int _location; // position in the file, equal to the number of bytes read
-	private boolean _little_endian;
+	private MappedByteBuffer _buffer; // the whole file, its position is the number of bytes read
 	private boolean _explicit;
 
 	/**
@@ -23,9 +28,7 @@ public class DiFileInputStream extends FileInputStream {
 	 */
 	public DiFileInputStream(String fname) throws IOException {
 		super(fname);
-		_location = 0;
-		_little_endian = true;
-		_explicit = true;
+		map();
 	}
 	
 	/**
@@ -36,14 +39,26 @@ public class DiFileInputStream extends FileInputStream {
 	 */
 	public DiFileInputStream(File file) throws IOException {
 		super(file);
-		_location = 0;
-		_little_endian = true;
+		map();
+	}
+
+	private void map() throws IOException {
+		try {
+			FileChannel channel = getChannel();
+			_buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException ex) {
+			close();
+			throw ex;
+		}
+		_buffer.order(ByteOrder.LITTLE_ENDIAN);
 		_explicit = true;
 	}
 	
 	public int read() throws IOException {
-        ++_location;
-        return super.read();
+		if (!_buffer.hasRemaining()) {
+			return -1;
+		}
+		return _buffer.get() & 0xff;
 	}
 	
 	/**
@@ -53,11 +68,50 @@ public class DiFileInputStream extends FileInputStream {
 	 * @return the length of the bytes read
 	 */
 	public int read(byte[] bytes) throws IOException {
-		int len = super.read(bytes);		
-		_location += len;
+		return read(bytes, 0, bytes.length);
+	}
+
+	public int read(byte[] bytes, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!_buffer.hasRemaining()) {
+			return -1;
+		}
+		len = Math.min(len, _buffer.remaining());
+		_buffer.get(bytes, off, len);
 		return len;
 	}
 
+	/**
+	 * Returns a read-only view of the next len bytes of the file and skips them.
+	 * No bytes are copied; the view shares the mapped file buffer and uses the
+	 * current byte order.
+	 * 
+	 * @param len	the number of bytes
+	 * @return		a buffer containing exactly len bytes
+	 * @throws IOException if less than len bytes are left
+	 */
+	public ByteBuffer slice(int len) throws IOException {
+		if (len < 0 || len > _buffer.remaining()) {
+			throw new EOFException("expected "+len+" bytes at "+_buffer.position()+", but only "+_buffer.remaining()+" are left");
+		}
+		ByteBuffer view = _buffer.slice();
+		view.limit(len);
+		_buffer.position(_buffer.position() + len);
+		return view.asReadOnlyBuffer().order(_buffer.order());
+	}
+
+	public long skip(long n) throws IOException {
+		int skipped = (int) Math.max(0, Math.min(n, _buffer.remaining()));
+		_buffer.position(_buffer.position() + skipped);
+		return skipped;
+	}
+
+	public int available() throws IOException {
+		return _buffer.remaining();
+	}
+
 	/**
 	 * Reads a byte from the stream. Returns -1 if end of file
 	 * is reached & throws an IOException.
@@ -79,18 +133,12 @@ public class DiFileInputStream extends FileInputStream {
 	 * @throws IOException
 	 */
     public int getShort() throws IOException {
-    	int result;
-    	
-        int b0 = getByte();
-        int b1 = getByte();
-        
-        if (b0==-1 || b1==-1) {
-        	result = -1;
-        } else {
-        	result = _little_endian ? ((b1 << 8) + b0) : ((b0 << 8) + b1);
-        }
-        
-        return result;
+    	if (_buffer.remaining() < 2) {
+    		_buffer.position(_buffer.limit());
+    		return -1;
+    	}
+
+        return _buffer.getShort() & 0xffff;
     }
   
 	/**
@@ -101,20 +149,12 @@ public class DiFileInputStream extends FileInputStream {
 	 * @throws IOException
 	 */
     public int getInt() throws IOException {
-    	int result;
-    	
-        int b0 = getByte();
-        int b1 = getByte();
-        int b2 = getByte();
-        int b3 = getByte();
-
-        if (b0==-1 || b1==-1 || b2==-1 || b3==-1) {
-        	result = -1;
-        } else {
-        	result = _little_endian ? ((b3<<24) + (b2<<16) + (b1<<8) + b0) : ((b0<<24) + (b1<<16) + (b2<<8) + b3);
-        }
-
-        return result;
+    	if (_buffer.remaining() < 4) {
+    		_buffer.position(_buffer.limit());
+    		return -1;
+    	}
+
+        return _buffer.getInt();
     }
 
 	/**
@@ -125,50 +165,27 @@ public class DiFileInputStream extends FileInputStream {
 	 */
     public boolean skipHeader() throws IOException {
     	// exercise 1 - skip header, return true if prefix = DICM.
-    	// dont forget to set the _location attribute !
-		_location = 0;
-		byte[] array = new byte[128];
-		int skipped = this.read(array);
+		if (_buffer.limit() < 132) {
+			_buffer.position(_buffer.limit());
+			return false;
+		}
+		_buffer.position(128);
 
 		int b0 = getByte();
 		int b1 = getByte();
 		int b2 = getByte();
 		int b3 = getByte();
 
-		if (b0==-1 || b1==-1 || b2==-1 || b3==-1) {
-			return false;
-		} else if ((char)b0 == 'D' && (char)b1 == 'I' && (char)b2 == 'C' && (char)b3 == 'M'){
-			return true;
-		}
-
-		return false;
+		return (char)b0 == 'D' && (char)b1 == 'I' && (char)b2 == 'C' && (char)b3 == 'M';
     }
     
     
-    /**
-     * Returns the image number (from tag 0020,0013) or -1 if the file did not
-     * contain an image number. Can throw an exception if the stream was no valid
-     * DICOM file.
-     * 
-     * @return the image number
-     * @throws Exception
-     */
-    public int quickscan_for_image_number() throws Exception {
-    	DiDataElement de = new DiDataElement();
-    	
-		do  {
-			de.readNext(this);
-		} while (de.getTag()<0x00200013);
-    	
-		return de.getValueAsInt();
-    }
-    
     /**
      * Returns the current location (= number of bytes read) of the stream.
      * @return
      */
     public int get_location() {
-    	return _location;
+    	return _buffer.position();
     }
     
     /**
@@ -177,7 +194,7 @@ public class DiFileInputStream extends FileInputStream {
      * @param little_endian true if little endian should be true
      */
     public void set_little_endian(boolean little_endian) {
-    	_little_endian = little_endian;
+    	_buffer.order(little_endian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
     }
 
 	public boolean get_explicit() {
@@ -0,0 +1,43 @@
+package misc;
+
+import java.nio.CharBuffer;
+
+/**
+ * A Volume on the Java heap: one contiguous char array per slice.
+ */
+public class HeapVolume extends Volume {
+	private char[][] _slices; // _d slices of _w * _h voxels, index x + y * _w
+
+	/**
+	 * Constructor for an empty volume. The slice arrays are allocated when they
+	 * are loaded (see load_slice).
+	 *
+	 * @param w	the slice width
+	 * @param h	the slice height
+	 * @param d	the number of slices
+	 */
+	public HeapVolume(int w, int h, int d) {
+		super(w, h, d);
+		_slices = new char[d][];
+	}
+
+	public int get(int x, int y, int z) {
+		return _slices[z][x + y * _w];
+	}
+
+	/**
+	 * Returns the internal slice array, buf is not needed.
+	 */
+	public char[] get_slice(int z, char[] buf) {
+		return _slices[z];
+	}
+
+	/**
+	 * Decodes the pixels straight into a new slice array.
+	 */
+	public void load_slice(int z, DiFile df) throws Exception {
+		char[] voxels = new char[_w * _h];
+		df.decode_pixels(CharBuffer.wrap(voxels));
+		_slices[z] = voxels;
+	}
+}
@@ -0,0 +1,59 @@
+package misc;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A small pool of ARGB BufferedImages, keyed by their size. Images that are
+ * no longer displayed are released into the pool and handed out again instead
+ * of allocating new ones, so switching between views of the same size does not
+ * produce garbage. The pool holds at most MAX_IMAGES images; further released
+ * images are left to the garbage collector.
+ */
+public class ImagePool {
+	public static final int MAX_IMAGES = 16;
+
+	private HashMap<Long, ArrayList<BufferedImage>> _free = new HashMap<>();
+	private int _count = 0;
+
+	/**
+	 * Returns an image of the given size, from the pool if possible. The
+	 * content of a pooled image is undefined.
+	 *
+	 * @param w	the image width
+	 * @param h	the image height
+	 * @return a TYPE_INT_ARGB image of w x h pixels
+	 */
+	public synchronized BufferedImage acquire(int w, int h) {
+		ArrayList<BufferedImage> list = _free.get(key(w, h));
+		if (list != null && !list.isEmpty()) {
+			_count--;
+			return list.remove(list.size() - 1);
+		}
+		return new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+	}
+
+	/**
+	 * Puts an image back into the pool. The caller must not use it afterwards.
+	 *
+	 * @param img	the image, may be null
+	 */
+	public synchronized void release(BufferedImage img) {
+		if (img == null || img.getType() != BufferedImage.TYPE_INT_ARGB || _count >= MAX_IMAGES) {
+			return;
+		}
+		Long key = key(img.getWidth(), img.getHeight());
+		ArrayList<BufferedImage> list = _free.get(key);
+		if (list == null) {
+			list = new ArrayList<BufferedImage>();
+			_free.put(key, list);
+		}
+		list.add(img);
+		_count++;
+	}
+
+	private static Long key(int w, int h) {
+		return Long.valueOf(((long) w << 32) | (h & 0xffffffffL));
+	}
+}
@@ -0,0 +1,91 @@
+package misc;
+
+/**
+ * The voxels of one slice sorted by intensity (a counting sort, so building
+ * the index is linear in the slice size). All voxels with an intensity in a
+ * given interval form a contiguous run of the index, which is found by two
+ * binary searches; range segmentations use this to visit only the voxels
+ * whose membership can change when the range is moved.
+ */
+public class IntensityIndex {
+	private char[] _sorted;	// the intensities in ascending order
+	private int[] _order;	// _order[k] is the voxel index (x + y * width) of _sorted[k]
+
+	/**
+	 * Builds the index of a slice.
+	 *
+	 * @param voxels	the intensities of the slice, row-major
+	 * @param n			the number of voxels (width * height)
+	 */
+	public IntensityIndex(char[] voxels, int n) {
+		int max = 0;
+		for (int i = 0; i < n; i++) {
+			max = Math.max(max, voxels[i]);
+		}
+
+		// start[v] is the first index position of intensity v
+		int[] start = new int[max + 2];
+		for (int i = 0; i < n; i++) {
+			start[voxels[i] + 1]++;
+		}
+		for (int v = 1; v < start.length; v++) {
+			start[v] += start[v - 1];
+		}
+
+		_sorted = new char[n];
+		_order = new int[n];
+		for (int i = 0; i < n; i++) {
+			int k = start[voxels[i]]++;
+			_sorted[k] = voxels[i];
+			_order[k] = i;
+		}
+	}
+
+	/**
+	 * Returns the first index position whose intensity is at least v.
+	 *
+	 * @param v	the intensity
+	 * @return a position in [0, size()]
+	 */
+	public int lower_bound(int v) {
+		int lo = 0, hi = _sorted.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (_sorted[mid] < v) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the voxel at an index position.
+	 *
+	 * @param k	the index position
+	 * @return the voxel index, x + y * width
+	 */
+	public int voxel(int k) {
+		return _order[k];
+	}
+
+	/**
+	 * Returns the intensity at an index position.
+	 *
+	 * @param k	the index position
+	 * @return the intensity of voxel(k)
+	 */
+	public int intensity(int k) {
+		return _sorted[k];
+	}
+
+	/**
+	 * Returns the number of voxels in the index.
+	 *
+	 * @return the slice size
+	 */
+	public int size() {
+		return _sorted.length;
+	}
+}
@@ -0,0 +1,228 @@
+package misc;
+
+import java.lang.ref.WeakReference;
+import java.nio.CharBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Volume that decodes its slices from the DICOM files when they are first
+ * accessed instead of when the series is loaded. Decoded slices are kept in a
+ * least recently used cache limited by a memory budget; whenever a slice is
+ * decoded, its READ_AHEAD neighbours on both sides are decoded in the
+ * background, so scrolling through the series rarely waits for the disk.
+ * Read ahead for slices that are no longer near the last decoded slice is
+ * dropped, so a fast scroll does not fill the cache with slices passed by.
+ */
+public class LazyVolume extends Volume {
+	public static final int READ_AHEAD = 2;
+	public static final int RECENT = 4; // slices each thread keeps at hand, a power of two
+
+	private DiFile[] _files; // the files of the slices, pixels are decoded from here
+	private int _capacity; // the number of slices the cache may hold
+	private LinkedHashMap<Integer, char[]> _cache; // decoded slices, in access order
+	private HashMap<Integer, FutureTask<char[]>> _pending = new HashMap<>(); // slices being decoded
+	private ThreadPoolExecutor _read_ahead;
+	private int _last_decoded; // the slice last missed in the cache, read ahead only decodes around it
+	private ThreadLocal<Slice[]> _recent; // per thread, slice z in slot z % RECENT, checked before the cache
+
+	/**
+	 * A decoded slice together with its number. The voxels are held weakly,
+	 * so a slice evicted from the cache does not stay in memory because some
+	 * thread read it last; only the cache counts against the budget.
+	 */
+	private static class Slice extends WeakReference<char[]> {
+		final int _z;
+
+		Slice(int z, char[] voxels) {
+			super(voxels);
+			_z = z;
+		}
+	}
+
+	/**
+	 * Constructor for a volume whose slices are registered by load_slice.
+	 *
+	 * @param w			the slice width
+	 * @param h			the slice height
+	 * @param d			the number of slices
+	 * @param budget	the number of bytes the cached slices may occupy
+	 */
+	public LazyVolume(int w, int h, int d, long budget) {
+		super(w, h, d);
+		_files = new DiFile[d];
+		long slice_bytes = size_in_bytes(w, h, 1);
+		long fitting = slice_bytes > 0 ? budget / slice_bytes : d; // empty slices take no memory
+		_capacity = (int) Math.max(2 * READ_AHEAD + 1, Math.min(d, fitting));
+		_cache = new LinkedHashMap<Integer, char[]>(16, 0.75f, true);
+		_read_ahead = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "LazyVolume read ahead");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		_recent = new ThreadLocal<Slice[]>() {
+			protected Slice[] initialValue() {
+				return new Slice[RECENT];
+			}
+		};
+	}
+
+	/**
+	 * Only remembers the file; its pixels are decoded when the slice is used.
+	 */
+	public void load_slice(int z, DiFile df) {
+		df.release_pixels();
+		_files[z] = df;
+	}
+
+	public int get(int x, int y, int z) {
+		return slice(z)[x + y * _w];
+	}
+
+	/**
+	 * Returns the cached slice array, buf is not needed.
+	 */
+	public char[] get_slice(int z, char[] buf) {
+		return slice(z);
+	}
+
+	/**
+	 * Returns the number of slices the cache may hold.
+	 *
+	 * @return the capacity in slices
+	 */
+	public int get_capacity() {
+		return _capacity;
+	}
+
+	/**
+	 * Returns the voxels of slice z, decoding them if they are not cached. The
+	 * RECENT slices a thread read last are found without taking the lock, so
+	 * walking along z (a sagittal row, the neighbours of a voxel) does not go
+	 * through the cache for every voxel.
+	 */
+	private char[] slice(int z) {
+		Slice[] recent = _recent.get();
+		Slice last = recent[z & (RECENT - 1)];
+		if (last != null && last._z == z) {
+			char[] voxels = last.get();
+			if (voxels != null) {
+				return voxels;
+			}
+		}
+
+		FutureTask<char[]> task;
+		synchronized (this) {
+			char[] voxels = _cache.get(z);
+			if (voxels != null) {
+				recent[z & (RECENT - 1)] = new Slice(z, voxels);
+				return voxels;
+			}
+			task = _pending.get(z);
+			if (task == null) {
+				task = create_task(z);
+			}
+			read_ahead(z);
+		}
+
+		// decodes the slice in this thread unless a read ahead already started it
+		// (FutureTask.run does nothing then, and get waits for the result)
+		task.run();
+		try {
+			char[] voxels = task.get();
+			recent[z & (RECENT - 1)] = new Slice(z, voxels);
+			return voxels;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while decoding slice " + z);
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException("could not decode slice " + z + " from " + _files[z].getFileName(), ex.getCause());
+		}
+	}
+
+	/**
+	 * Creates and registers the task decoding slice z. Must hold the lock.
+	 * The task unregisters itself when it is done.
+	 */
+	private FutureTask<char[]> create_task(final int z) {
+		FutureTask<char[]> task = new FutureTask<char[]>(new Callable<char[]>() {
+			public char[] call() throws Exception {
+				char[] voxels = new char[_w * _h];
+				_files[z].decode_pixels(CharBuffer.wrap(voxels));
+				put(z, voxels);
+				return voxels;
+			}
+		}) {
+			protected void done() {
+				synchronized (LazyVolume.this) {
+					_pending.remove(z, this);
+				}
+			}
+		};
+		_pending.put(z, task);
+		return task;
+	}
+
+	/**
+	 * Schedules the neighbours of slice z that are neither cached nor being
+	 * decoded. A scheduled neighbour is only decoded if it is still within
+	 * READ_AHEAD of the last decoded slice when the read ahead thread gets to
+	 * it. Must hold the lock.
+	 */
+	private void read_ahead(int z) {
+		_last_decoded = z;
+		for (int i = 1; i <= READ_AHEAD; i++) {
+			for (int n = z - i; n <= z + i; n += 2 * i) {
+				if (n >= 0 && n < _d && !_cache.containsKey(n) && !_pending.containsKey(n)) {
+					final int slice = n;
+					final FutureTask<char[]> task = create_task(n);
+					_read_ahead.execute(new Runnable() {
+						public void run() {
+							if (still_wanted(slice, task)) {
+								task.run();
+							}
+						}
+					});
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the read ahead of slice z is still near the last decoded
+	 * slice. Otherwise the task is unregistered, so the next access to slice z
+	 * decodes it anew; a thread that already waits for the task runs it itself.
+	 */
+	private synchronized boolean still_wanted(int z, FutureTask<char[]> task) {
+		if (Math.abs(z - _last_decoded) <= READ_AHEAD) {
+			return true;
+		}
+		_pending.remove(z, task);
+		return false;
+	}
+
+	/**
+	 * Adds a decoded slice to the cache and evicts the least recently used
+	 * slices beyond the capacity.
+	 */
+	private synchronized void put(int z, char[] voxels) {
+		_cache.put(z, voxels);
+		Iterator<Map.Entry<Integer, char[]>> it = _cache.entrySet().iterator();
+		while (_cache.size() > _capacity && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package misc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A Volume outside of the Java heap. The voxels are kept in a memory mapped
+ * scratch file in the temp directory (one mapping per slice, so the volume
+ * may be larger than 2 GB), and the operating system pages them in and out
+ * as needed. Only the small buffer objects live on the heap.
+ */
+public class MappedVolume extends Volume {
+	private CharBuffer[] _slices; // _d mapped slices of _w * _h voxels, index x + y * _w
+
+	/**
+	 * Creates the scratch file and maps all slices. The file is removed right
+	 * away where the operating system allows it (the mappings stay valid),
+	 * otherwise when the program ends.
+	 *
+	 * @param w	the slice width
+	 * @param h	the slice height
+	 * @param d	the number of slices
+	 * @throws IOException if the scratch file could not be created or mapped
+	 */
+	public MappedVolume(int w, int h, int d) throws IOException {
+		super(w, h, d);
+		_slices = new CharBuffer[d];
+
+		File file = File.createTempFile("labmed", ".vol");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			long slice_bytes = size_in_bytes(w, h, 1);
+			for (int z = 0; z < d; z++) {
+				_slices[z] = channel.map(FileChannel.MapMode.READ_WRITE, z * slice_bytes, slice_bytes)
+						.order(ByteOrder.nativeOrder()).asCharBuffer();
+			}
+		} finally {
+			raf.close();
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	public int get(int x, int y, int z) {
+		return _slices[z].get(x + y * _w);
+	}
+
+	/**
+	 * Copies the slice into buf.
+	 */
+	public char[] get_slice(int z, char[] buf) {
+		int n = _w * _h;
+		if (buf == null || buf.length < n) {
+			buf = new char[n];
+		}
+		// duplicate, since a bulk get moves the position and several threads may read
+		_slices[z].duplicate().get(buf, 0, n);
+		return buf;
+	}
+
+	/**
+	 * Decodes the pixels straight into the mapped slice.
+	 */
+	public void load_slice(int z, DiFile df) throws Exception {
+		df.decode_pixels(_slices[z].duplicate());
+	}
+}
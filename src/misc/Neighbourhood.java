@@ -0,0 +1,7 @@
+package misc;
+
+public enum Neighbourhood {
+    N6,
+    N18,
+    N26
+}
@@ -0,0 +1,88 @@
+package misc;
+
+import java.util.Arrays;
+
+/**
+ * An indexed triangle mesh in primitive arrays: three float coordinates per
+ * vertex and three vertex indices per triangle. Both arrays grow by doubling,
+ * so adding vertices and indices allocates nothing per element.
+ */
+public class TriangleMesh {
+	private float[] _coords = new float[3 * 1024];
+	private int _vertex_num;
+	private int[] _indices = new int[3 * 1024];
+	private int _index_num;
+
+	/**
+	 * Adds a vertex.
+	 *
+	 * @return the index of the new vertex
+	 */
+	public int add_vertex(float x, float y, float z) {
+		if (3 * _vertex_num + 3 > _coords.length) {
+			_coords = Arrays.copyOf(_coords, _coords.length * 2);
+		}
+		_coords[3 * _vertex_num] = x;
+		_coords[3 * _vertex_num + 1] = y;
+		_coords[3 * _vertex_num + 2] = z;
+		return _vertex_num++;
+	}
+
+	/**
+	 * Adds a vertex index, every three of them form a triangle.
+	 *
+	 * @param vertex	the vertex index
+	 */
+	public void add_index(int vertex) {
+		if (_index_num == _indices.length) {
+			_indices = Arrays.copyOf(_indices, _indices.length * 2);
+		}
+		_indices[_index_num++] = vertex;
+	}
+
+	/**
+	 * Returns the number of vertices.
+	 *
+	 * @return the vertex count
+	 */
+	public int get_vertex_num() {
+		return _vertex_num;
+	}
+
+	/**
+	 * Returns the number of vertex indices, three per triangle.
+	 *
+	 * @return the index count
+	 */
+	public int get_index_num() {
+		return _index_num;
+	}
+
+	/**
+	 * Copies the coordinates of a vertex.
+	 *
+	 * @param i		the vertex index
+	 * @param xyz	receives x, y and z
+	 */
+	public void get_vertex(int i, float[] xyz) {
+		System.arraycopy(_coords, 3 * i, xyz, 0, 3);
+	}
+
+	/**
+	 * Returns the coordinates of all vertices.
+	 *
+	 * @return x, y, z of vertex 0, x, y, z of vertex 1, ...
+	 */
+	public float[] get_coordinates() {
+		return Arrays.copyOf(_coords, 3 * _vertex_num);
+	}
+
+	/**
+	 * Returns the vertex indices of all triangles.
+	 *
+	 * @return three vertex indices per triangle
+	 */
+	public int[] get_indices() {
+		return Arrays.copyOf(_indices, _index_num);
+	}
+}
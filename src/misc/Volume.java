@@ -0,0 +1,111 @@
+package misc;
+
+/**
+ * Stores the voxel intensities of a whole DICOM series. Voxels are unsigned
+ * 16 bit values, each slice is stored row-major (index x + y * width), so a
+ * scanline is a linear run of memory and x/y/z access is a single index
+ * computation. Subclasses decide where the voxels live: HeapVolume keeps them
+ * in char arrays on the Java heap, MappedVolume in a memory mapped scratch file
+ * outside of it, and LazyVolume decodes them from the DICOM files on demand.
+ */
+public abstract class Volume {
+	protected int _w;
+	protected int _h;
+	protected int _d;
+
+	/**
+	 * Constructor for an empty volume.
+	 *
+	 * @param w	the slice width
+	 * @param h	the slice height
+	 * @param d	the number of slices
+	 */
+	protected Volume(int w, int h, int d) {
+		_w = w;
+		_h = h;
+		_d = d;
+	}
+
+	/**
+	 * Returns the intensity of a voxel.
+	 *
+	 * @param x	the horizontal position
+	 * @param y	the vertical position
+	 * @param z	the slice
+	 * @return the intensity
+	 */
+	public abstract int get(int x, int y, int z);
+
+	/**
+	 * Returns true if the intensity of a voxel lies in [min, max].
+	 *
+	 * @param min	the lower bound (inclusive)
+	 * @param max	the upper bound (inclusive)
+	 * @param x		the horizontal position
+	 * @param y		the vertical position
+	 * @param z		the slice
+	 * @return true if min <= intensity <= max
+	 */
+	public boolean is_in_range(int min, int max, int x, int y, int z) {
+		int intensity = get(x, y, z);
+		return intensity >= min && intensity <= max;
+	}
+
+	/**
+	 * Returns the voxels of slice z in row-major order (index x + y * width).
+	 * The returned array may be the internal storage and must not be modified.
+	 * If the slice has to be copied, it is copied into buf (or a new array if buf
+	 * is null or too small), so callers reading many slices pass the same buffer.
+	 * buf must never be an array that was returned by get_slice.
+	 *
+	 * @param z		the slice
+	 * @param buf	a buffer of at least width * height chars, or null
+	 * @return the slice voxels
+	 */
+	public abstract char[] get_slice(int z, char[] buf);
+
+	/**
+	 * Stores the pixels of a DiFile as slice z.
+	 *
+	 * @param z		the slice
+	 * @param df	a DiFile read by initFromFile, matching the volume size
+	 * @throws Exception if the pixels could not be decoded
+	 */
+	public abstract void load_slice(int z, DiFile df) throws Exception;
+
+	/**
+	 * Returns the number of bytes needed to store a volume of the given size.
+	 *
+	 * @param w	the slice width
+	 * @param h	the slice height
+	 * @param d	the number of slices
+	 * @return the size in bytes
+	 */
+	public static long size_in_bytes(int w, int h, int d) {
+		return 2L * w * h * d;
+	}
+
+	/**
+	 * Returns the slice width.
+	 * @return the width
+	 */
+	public int getWidth() {
+		return _w;
+	}
+
+	/**
+	 * Returns the slice height.
+	 * @return the height
+	 */
+	public int getHeight() {
+		return _h;
+	}
+
+	/**
+	 * Returns the number of slices.
+	 * @return the depth
+	 */
+	public int getDepth() {
+		return _d;
+	}
+}
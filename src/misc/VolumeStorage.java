@@ -0,0 +1,8 @@
+package misc;
+
+public enum VolumeStorage {
+    AUTO,
+    HEAP,
+    MAPPED,
+    LAZY
+}
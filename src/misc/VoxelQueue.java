@@ -0,0 +1,61 @@
+package misc;
+
+/**
+ * A growable ring buffer of voxel indices (x + y * width + z * width * height),
+ * used as queue and as list by the region growing code. Voxels are stored as
+ * primitive longs, so no object is allocated per voxel.
+ */
+public class VoxelQueue {
+	private long[] _data = new long[1024];
+	private int _head, _size;
+
+	/**
+	 * Appends a voxel.
+	 *
+	 * @param voxel	the voxel index
+	 */
+	public void push(long voxel) {
+		if (_size == _data.length) {
+			// grow the ring buffer, unwrapping it
+			long[] data = new long[_data.length * 2];
+			int tail = _data.length - _head;
+			System.arraycopy(_data, _head, data, 0, tail);
+			System.arraycopy(_data, 0, data, tail, _head);
+			_data = data;
+			_head = 0;
+		}
+		_data[(_head + _size) & (_data.length - 1)] = voxel;
+		_size++;
+	}
+
+	/**
+	 * Removes and returns the first voxel. The queue must not be empty.
+	 *
+	 * @return the voxel index
+	 */
+	public long pop() {
+		long voxel = _data[_head];
+		_head = (_head + 1) & (_data.length - 1);
+		_size--;
+		return voxel;
+	}
+
+	/**
+	 * Returns the k-th voxel without removing it.
+	 *
+	 * @param k	the position, 0 is the first voxel
+	 * @return the voxel index
+	 */
+	public long get(int k) {
+		return _data[(_head + k) & (_data.length - 1)];
+	}
+
+	/**
+	 * Returns the number of voxels in the queue.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return _size;
+	}
+}
@@ -0,0 +1,91 @@
+package misc;
+
+/**
+ * A lookup table mapping raw voxel intensities (0 .. 65535) to 8 bit grey
+ * values and packed opaque ARGB pixels for one window center / width and one
+ * rescale slope / intercept. Tables are immutable, so they can be shared by
+ * the rendering code without locking; a new table is built when one of the
+ * parameters changes.
+ */
+public class WindowLut {
+	public static final int SIZE = 1 << 16;
+
+	private final int _center, _width, _slope, _intercept;
+	private final byte[] _grey;
+	private final int[] _argb;
+
+	/**
+	 * Builds the table.
+	 *
+	 * @param center	the window center
+	 * @param width		the window width
+	 * @param slope		the rescale slope of the images
+	 * @param intercept	the rescale intercept of the images
+	 */
+	public WindowLut(int center, int width, int slope, int intercept) {
+		_center = center;
+		_width = width;
+		_slope = slope;
+		_intercept = intercept;
+		_grey = new byte[SIZE];
+		_argb = new int[SIZE];
+
+		for (int i = 0; i < SIZE; i++) {
+			int grey = greyscale(i, center, width, slope, intercept);
+			_grey[i] = (byte) grey;
+			_argb[i] = 0xff000000 | (grey << 16) | (grey << 8) | grey;
+		}
+	}
+
+	/**
+	 * Maps an intensity to 0-255 greyscale, the computation the table caches.
+	 *
+	 * @param intensity	the raw intensity
+	 * @param center	the window center
+	 * @param width		the window width
+	 * @param slope		the rescale slope
+	 * @param intercept	the rescale intercept
+	 * @return the grey value
+	 */
+	public static int greyscale(int intensity, int center, int width, int slope, int intercept) {
+		//apply scaling
+		int scaled = intensity * slope + intercept;
+
+		//normalize to 0-255
+		double lower_bound = center - 0.5 - (width - 1) / 2.0;
+		double upper_bound = center - 0.5 + (width - 1) / 2.0;
+		if (scaled <= lower_bound) {
+			return 0;
+		} else if (scaled > upper_bound) {
+			return 255;
+		}
+		return (int) Math.round(((scaled - center - 0.5) / (width - 1) + 0.5) * 255);
+	}
+
+	/**
+	 * Returns true if the table was built for the given parameters.
+	 */
+	public boolean matches(int center, int width, int slope, int intercept) {
+		return _center == center && _width == width && _slope == slope && _intercept == intercept;
+	}
+
+	/**
+	 * Returns the grey value of an intensity.
+	 *
+	 * @param intensity	the raw intensity, 0 .. SIZE-1
+	 * @return the grey value, 0-255
+	 */
+	public int grey(int intensity) {
+		return _grey[intensity] & 0xff;
+	}
+
+	/**
+	 * Returns the table of opaque ARGB pixels, indexed by raw intensity. The
+	 * array is shared and must not be modified.
+	 *
+	 * @return the ARGB table of SIZE entries
+	 */
+	public int[] argb() {
+		return _argb;
+	}
+}